@@ -0,0 +1,81 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that the voice send and receive paths don't allocate once they are
+ * warmed up.
+ *
+ * Each case is called repeatedly on this thread and the bytes the thread
+ * allocated are read from the ThreadMXBean. bench.xml runs this with escape
+ * analysis off, so allocations the desktop JIT would remove but Dalvik
+ * wouldn't are still counted. Exits with 1 if a case allocates.
+ */
+public final class AllocationCheck {
+	/**
+	 * The decrypt cases rekey when their packets run out, which allocates.
+	 * The counts are chosen so that happens on the last warm-up call and not
+	 * while counting.
+	 */
+	private static final int WARMUP_CALLS = 5 * CryptStateBenchmarks.DECRYPT_PACKETS + 1;
+	private static final int CALLS = CryptStateBenchmarks.DECRYPT_PACKETS - 1;
+
+	/** Keeps the results of the calls alive */
+	private static volatile int sink;
+
+	public static void main(final String[] args) {
+		final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Allocation counting isn't supported by this JVM");
+			System.exit(1);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		final List<Benchmark> cases = new ArrayList<Benchmark>();
+		for (final int size : CryptStateBenchmarks.PACKET_SIZES) {
+			cases.add(CryptStateBenchmarks.encrypt(size));
+			cases.add(CryptStateBenchmarks.decrypt(size));
+		}
+		for (final int frames : PacketDataStreamBenchmarks.FRAMES_PER_PACKET) {
+			cases.add(PacketDataStreamBenchmarks.voicePacket(frames));
+		}
+
+		final long thread = Thread.currentThread().getId();
+		boolean allocated = false;
+		for (final Benchmark b : cases) {
+			int result = 0;
+			for (int i = 0; i < WARMUP_CALLS; i++) {
+				result += b.call();
+			}
+
+			final long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < CALLS; i++) {
+				result += b.call();
+			}
+			final long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+			// Anything below a byte per call is the counter itself, not the
+			// case.
+			final boolean ok = bytes < CALLS;
+			allocated |= !ok;
+			System.out.println(String.format(
+				"%-52s %10d bytes in %d calls  %s",
+				b.getName(),
+				bytes,
+				CALLS,
+				ok ? "ok" : "ALLOCATES"));
+			sink += result;
+		}
+
+		if (allocated) {
+			System.exit(1);
+		}
+	}
+
+	private AllocationCheck() {
+	}
+}
@@ -0,0 +1,21 @@
+package org.pcgod.mumbleclient.bench;
+
+/**
+ * A single timed operation.
+ *
+ * BenchmarkRunner calls call() repeatedly. It returns a value computed from
+ * its work so the JIT can't remove the call.
+ */
+public abstract class Benchmark {
+	private final String name;
+
+	protected Benchmark(final String name) {
+		this.name = name;
+	}
+
+	public abstract int call();
+
+	public final String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,77 @@
+package org.pcgod.mumbleclient.bench;
+
+/**
+ * Runs a benchmark after a warm up and measures the time per call.
+ *
+ * The calls are made in batches sized during the warm up so a batch takes
+ * about a millisecond and reading the clock doesn't show in the results.
+ */
+public final class BenchmarkRunner {
+	/**
+	 * Time per call over the measured rounds.
+	 */
+	public static final class Result {
+		public final double mean;
+		public final double min;
+		public final double max;
+
+		Result(final double mean, final double min, final double max) {
+			this.mean = mean;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	private static final long WARMUP_NS = 500 * 1000 * 1000L;
+	private static final long ROUND_NS = 200 * 1000 * 1000L;
+	private static final long BATCH_NS = 1000 * 1000L;
+	private static final int ROUNDS = 5;
+
+	/** Keeps the results of the calls alive */
+	private static volatile int sink;
+
+	public static Result run(final Benchmark benchmark) {
+		int batch = 1;
+		final long warmupEnd = System.nanoTime() + WARMUP_NS;
+		while (System.nanoTime() < warmupEnd) {
+			final long start = System.nanoTime();
+			runBatch(benchmark, batch);
+			if (System.nanoTime() - start < BATCH_NS && batch < (1 << 24)) {
+				batch *= 2;
+			}
+		}
+
+		double sum = 0;
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			long calls = 0;
+			final long start = System.nanoTime();
+			final long end = start + ROUND_NS;
+			long now;
+			do {
+				runBatch(benchmark, batch);
+				calls += batch;
+				now = System.nanoTime();
+			} while (now < end);
+
+			final double perCall = (double) (now - start) / calls;
+			sum += perCall;
+			min = Math.min(min, perCall);
+			max = Math.max(max, perCall);
+		}
+
+		return new Result(sum / ROUNDS, min, max);
+	}
+
+	private static void runBatch(final Benchmark benchmark, final int batch) {
+		int result = 0;
+		for (int i = 0; i < batch; i++) {
+			result += benchmark.call();
+		}
+		sink += result;
+	}
+
+	private BenchmarkRunner() {
+	}
+}
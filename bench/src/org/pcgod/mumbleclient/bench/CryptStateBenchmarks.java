@@ -0,0 +1,112 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.service.CryptState;
+
+/**
+ * OCB encryption and decryption of voice packets of different sizes.
+ */
+public final class CryptStateBenchmarks {
+	/** Plain packet sizes: a small CELT frame up to several frames per packet */
+	static final int[] PACKET_SIZES = { 16, 64, 128, 512 };
+
+	/**
+	 * Packets encrypted ahead for the decrypt benchmarks. Decrypting rejects
+	 * replays, so the receiver is rekeyed whenever the packets run out.
+	 */
+	static final int DECRYPT_PACKETS = 4096;
+
+	private static final int AES_BLOCK_SIZE = 16;
+
+	/**
+	 * Decrypts packets encrypted ahead by a peer.
+	 */
+	static final class DecryptSource {
+		private final byte[] key;
+		private final byte[] encryptIv;
+		private final byte[] decryptIv;
+		private final byte[][] packets;
+		private final int length;
+		private final CryptState receiver;
+		private int next;
+
+		DecryptSource(final CryptState receiver, final int size, final long seed) {
+			final Random random = new Random(seed);
+			key = randomBytes(random);
+			encryptIv = randomBytes(random);
+			decryptIv = randomBytes(random);
+			this.receiver = receiver;
+
+			// The peer's encrypt IV is the receiver's decrypt IV.
+			final CryptState peer = new CryptState();
+			peer.setKeys(key, decryptIv, encryptIv);
+			receiver.setKeys(key, encryptIv, decryptIv);
+
+			final byte[] plain = new byte[size];
+			random.nextBytes(plain);
+			length = size + CryptState.HEADER_SIZE;
+			packets = new byte[DECRYPT_PACKETS][length];
+			for (final byte[] packet : packets) {
+				peer.encrypt(plain, size, packet, 0);
+			}
+		}
+
+		int decryptNext(final byte[] dst) {
+			if (next == packets.length) {
+				receiver.setKeys(key, encryptIv, decryptIv);
+				next = 0;
+			}
+			return receiver.decrypt(packets[next++], length, dst, 0);
+		}
+	}
+
+	public static List<Benchmark> create() {
+		final List<Benchmark> list = new ArrayList<Benchmark>();
+		for (final int size : PACKET_SIZES) {
+			list.add(encrypt(size));
+			list.add(decrypt(size));
+		}
+		return list;
+	}
+
+	static byte[] randomBytes(final Random random) {
+		final byte[] bytes = new byte[AES_BLOCK_SIZE];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	static Benchmark decrypt(final int size) {
+		final CryptState receiver = new CryptState();
+		final DecryptSource source = new DecryptSource(receiver, size, size);
+		final byte[] dst = new byte[size];
+
+		return new Benchmark("CryptState.decrypt size=" + size) {
+			@Override
+			public int call() {
+				return source.decryptNext(dst);
+			}
+		};
+	}
+
+	static Benchmark encrypt(final int size) {
+		final Random random = new Random(size);
+		final CryptState cs = new CryptState();
+		cs.setKeys(randomBytes(random), randomBytes(random), randomBytes(random));
+		final byte[] plain = new byte[size];
+		random.nextBytes(plain);
+		final byte[] dst = new byte[size + CryptState.HEADER_SIZE];
+
+		return new Benchmark("CryptState.encrypt size=" + size) {
+			@Override
+			public int call() {
+				return cs.encrypt(plain, size, dst, 0);
+			}
+		};
+	}
+
+	private CryptStateBenchmarks() {
+	}
+}
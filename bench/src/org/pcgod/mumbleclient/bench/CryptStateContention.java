@@ -0,0 +1,139 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.Random;
+
+import org.pcgod.mumbleclient.service.CryptState;
+
+/**
+ * Full duplex throughput of one CryptState: one thread encrypts like the
+ * record thread while another decrypts like the UDP reader.
+ *
+ * Each size runs twice. "split" uses CryptState as it is, with separate
+ * encrypt and decrypt locks. "shared" wraps every call in a lock on the
+ * CryptState, which is how the class was locked before the split.
+ *
+ * The two threads only overlap with more than one CPU. On a single core the
+ * variants should come out the same.
+ */
+public final class CryptStateContention {
+	private static final int[] PACKET_SIZES = { 64, 512 };
+	private static final long WARMUP_MS = 1000;
+	private static final long MEASURE_MS = 2000;
+	private static final int ROUNDS = 2;
+
+	/**
+	 * Calls an operation until stopped and counts the calls.
+	 */
+	private static abstract class Worker extends Thread {
+		volatile boolean measuring;
+		volatile boolean stopped;
+		volatile long calls;
+		volatile int sink;
+
+		@Override
+		public void run() {
+			long count = 0;
+			int result = 0;
+			boolean counting = false;
+			while (!stopped) {
+				result += call();
+				if (counting) {
+					count++;
+				} else if (measuring) {
+					counting = true;
+				}
+			}
+			calls = count;
+			sink = result;
+		}
+
+		abstract int call();
+	}
+
+	public static void run() {
+		System.out.println(String.format(
+			"CryptState full duplex, %d cpus, packets per second",
+			Runtime.getRuntime().availableProcessors()));
+		for (final int size : PACKET_SIZES) {
+			// Unreported runs so both variants are compiled before timing.
+			measure(size, false, false);
+			measure(size, true, false);
+			for (int round = 0; round < ROUNDS; round++) {
+				measure(size, true, true);
+				measure(size, false, true);
+			}
+		}
+	}
+
+	private static void measure(
+		final int size,
+		final boolean sharedLock,
+		final boolean report) {
+		final CryptState cs = new CryptState();
+		final CryptStateBenchmarks.DecryptSource source = new CryptStateBenchmarks.DecryptSource(
+			cs,
+			size,
+			size);
+
+		final Random random = new Random(size);
+		final byte[] plain = new byte[size];
+		random.nextBytes(plain);
+		final byte[] encrypted = new byte[size + CryptState.HEADER_SIZE];
+		final byte[] decrypted = new byte[size];
+
+		final Worker encrypter = new Worker() {
+			@Override
+			int call() {
+				if (sharedLock) {
+					synchronized (cs) {
+						return cs.encrypt(plain, size, encrypted, 0);
+					}
+				}
+				return cs.encrypt(plain, size, encrypted, 0);
+			}
+		};
+		final Worker decrypter = new Worker() {
+			@Override
+			int call() {
+				if (sharedLock) {
+					synchronized (cs) {
+						return source.decryptNext(decrypted);
+					}
+				}
+				return source.decryptNext(decrypted);
+			}
+		};
+
+		encrypter.start();
+		decrypter.start();
+		try {
+			Thread.sleep(WARMUP_MS);
+			encrypter.measuring = true;
+			decrypter.measuring = true;
+			Thread.sleep(MEASURE_MS);
+			encrypter.stopped = true;
+			decrypter.stopped = true;
+			encrypter.join();
+			decrypter.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (!report) {
+			return;
+		}
+
+		final double seconds = MEASURE_MS / 1000.0;
+		System.out.println(String.format(
+			"  size=%-4d %-6s encrypt %9.0f  decrypt %9.0f  total %9.0f",
+			size,
+			sharedLock ? "shared" : "split",
+			encrypter.calls / seconds,
+			decrypter.calls / seconds,
+			(encrypter.calls + decrypter.calls) / seconds));
+	}
+
+	private CryptStateContention() {
+	}
+}
@@ -0,0 +1,43 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.service.audio.JitterBufferBenchmarks;
+
+/**
+ * Runs the benchmarks whose name contains the first argument, or all of them,
+ * and prints the time per call. The CryptState full duplex measurement runs
+ * last, for an empty filter or one that matches "contention".
+ */
+public final class Main {
+	public static void main(final String[] args) {
+		final String filter = args.length > 0 ? args[0] : "";
+
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(CryptStateBenchmarks.create());
+		benchmarks.addAll(PacketDataStreamBenchmarks.create());
+		benchmarks.addAll(JitterBufferBenchmarks.create());
+
+		for (final Benchmark b : benchmarks) {
+			if (!b.getName().contains(filter)) {
+				continue;
+			}
+
+			final BenchmarkRunner.Result r = BenchmarkRunner.run(b);
+			System.out.println(String.format(
+				"%-52s %10.1f ns/call  [%.1f .. %.1f]",
+				b.getName(),
+				r.mean,
+				r.min,
+				r.max));
+		}
+
+		if ("contention".contains(filter)) {
+			CryptStateContention.run();
+		}
+	}
+
+	private Main() {
+	}
+}
@@ -0,0 +1,122 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.service.PacketDataStream;
+
+/**
+ * Writing and reading the variable length integers of the voice packet
+ * headers, for each of the encoded sizes, and building whole voice packets
+ * the way RecordThread.sendPacket does.
+ */
+public final class PacketDataStreamBenchmarks {
+	/** Values per call, about the integers in a voice packet */
+	private static final int VALUES = 16;
+
+	static final int[] FRAMES_PER_PACKET = { 1, 2, 4, 6 };
+	private static final int ENCODED_FRAME_SIZE = 60;
+
+	/** One value per varint encoding, with its encoded size in the name */
+	private static final long[] VALUES_BY_WIDTH = {
+		0x7FL,
+		0x3FFFL,
+		0x1FFFFFL,
+		0xFFFFFFFL,
+		0xFFFFFFFFL,
+		0x7FFFFFFFFFFFFFFFL,
+		-2L,
+		-0x100L };
+	private static final String[] WIDTH_NAMES = {
+		"1 byte",
+		"2 bytes",
+		"3 bytes",
+		"4 bytes",
+		"5 bytes",
+		"9 bytes",
+		"negative 1 byte",
+		"negative 3 bytes" };
+
+	public static List<Benchmark> create() {
+		final List<Benchmark> list = new ArrayList<Benchmark>();
+		for (int i = 0; i < VALUES_BY_WIDTH.length; i++) {
+			list.add(write(VALUES_BY_WIDTH[i], WIDTH_NAMES[i]));
+			list.add(read(VALUES_BY_WIDTH[i], WIDTH_NAMES[i]));
+		}
+		for (final int frames : FRAMES_PER_PACKET) {
+			list.add(voicePacket(frames));
+		}
+		return list;
+	}
+
+	/**
+	 * Builds a terminated voice packet from encoded frames in a reused
+	 * buffer, like RecordThread.sendPacket.
+	 */
+	static Benchmark voicePacket(final int frames) {
+		final byte[] packetBuffer = new byte[1024];
+		final PacketDataStream packet = new PacketDataStream(packetBuffer);
+		final byte[][] encodedFrames = new byte[frames][ENCODED_FRAME_SIZE];
+		final int[] encodedLengths = new int[frames];
+		for (int i = 0; i < frames; i++) {
+			encodedLengths[i] = ENCODED_FRAME_SIZE - i;
+		}
+
+		return new Benchmark("Voice packet build frames=" + frames) {
+			private long seq = 100000;
+
+			@Override
+			public int call() {
+				packetBuffer[0] = (byte) (1 << 5);
+
+				packet.rewind();
+				packet.next();
+				packet.writeLong(seq);
+				seq += frames;
+				for (int i = 0; i < frames; ++i) {
+					packet.append(encodedLengths[i] | 0x80);
+					packet.append(encodedFrames[i], encodedLengths[i]);
+				}
+				packet.append(0);
+				return packet.size();
+			}
+		};
+	}
+
+	private static Benchmark read(final long value, final String width) {
+		final PacketDataStream pds = new PacketDataStream(new byte[VALUES * 10]);
+		for (int i = 0; i < VALUES; i++) {
+			pds.writeLong(value);
+		}
+
+		return new Benchmark("PacketDataStream.readLong " + width) {
+			@Override
+			public int call() {
+				pds.rewind();
+				long sum = 0;
+				for (int i = 0; i < VALUES; i++) {
+					sum += pds.readLong();
+				}
+				return (int) sum;
+			}
+		};
+	}
+
+	private static Benchmark write(final long value, final String width) {
+		final PacketDataStream pds = new PacketDataStream(new byte[VALUES * 10]);
+
+		return new Benchmark("PacketDataStream.writeLong " + width) {
+			@Override
+			public int call() {
+				pds.rewind();
+				for (int i = 0; i < VALUES; i++) {
+					pds.writeLong(value);
+				}
+				return pds.size();
+			}
+		};
+	}
+
+	private PacketDataStreamBenchmarks() {
+	}
+}
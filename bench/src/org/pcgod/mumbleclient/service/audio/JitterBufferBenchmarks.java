@@ -0,0 +1,91 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.bench.Benchmark;
+import org.pcgod.mumbleclient.jni.Native;
+
+/**
+ * The put, get, update delay and tick cycle AudioUser runs on the Java
+ * jitter buffer for every output frame, with one buffer per speaker.
+ *
+ * Every eighth packet arrives one frame late, after its successor, and one
+ * packet in fifty is lost so the buffers reorder and conceal as well.
+ */
+public final class JitterBufferBenchmarks {
+	static final int[] SPEAKERS = { 1, 4, 16 };
+
+	private static final int FRAME_SIZE = 480;
+	private static final int PACKET_SIZE = 60;
+
+	/**
+	 * One speaker's buffer and the packets sent to it.
+	 */
+	private static final class Speaker {
+		final JitterBuffer buffer = new JitterBuffer(FRAME_SIZE);
+		final Native.JitterBufferPacket in = new Native.JitterBufferPacket();
+		final Native.JitterBufferPacket out = new Native.JitterBufferPacket();
+		final int[] currentTimestamp = new int[1];
+		int tick;
+
+		Speaker() {
+			in.data = new byte[PACKET_SIZE];
+			in.len = PACKET_SIZE;
+			in.span = FRAME_SIZE;
+			out.data = new byte[128];
+			buffer.setMargin(FRAME_SIZE);
+		}
+
+		int cycle() {
+			final int t = tick++;
+			if (t % 8 == 4) {
+				put(t);
+				put(t - 1);
+			} else if (t % 8 != 3 && t % 50 != 49) {
+				put(t);
+			}
+
+			out.len = out.data.length;
+			final int result = buffer.get(out, FRAME_SIZE, currentTimestamp);
+			buffer.updateDelay();
+			buffer.tick();
+			return result;
+		}
+
+		private void put(final int frame) {
+			in.timestamp = frame * FRAME_SIZE;
+			in.sequence = (short) frame;
+			buffer.put(in);
+		}
+	}
+
+	public static List<Benchmark> create() {
+		final List<Benchmark> list = new ArrayList<Benchmark>();
+		for (final int speakers : SPEAKERS) {
+			list.add(cycle(speakers));
+		}
+		return list;
+	}
+
+	private static Benchmark cycle(final int count) {
+		final Speaker[] speakers = new Speaker[count];
+		for (int i = 0; i < count; i++) {
+			speakers[i] = new Speaker();
+		}
+
+		return new Benchmark("JitterBuffer frame cycle speakers=" + count) {
+			@Override
+			public int call() {
+				int result = 0;
+				for (final Speaker s : speakers) {
+					result += s.cycle();
+				}
+				return result;
+			}
+		};
+	}
+
+	private JitterBufferBenchmarks() {
+	}
+}
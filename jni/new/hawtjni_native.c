@@ -8,6 +8,16 @@
 #define JNIEXPORT __attribute__ ((visibility("default")))
 #define Native_NATIVE(func) Java_org_pcgod_mumbleclient_jni_Native_##func
 
+JNIEXPORT jlong JNICALL Native_NATIVE(GetDirectBufferAddress)
+	(JNIEnv *env, jclass that, jobject arg0)
+{
+	jlong rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_GetDirectBufferAddress_FUNC);
+	rc = (intptr_t)(void *)(*env)->GetDirectBufferAddress(env, arg0);
+	Native_NATIVE_EXIT(env, that, Native_GetDirectBufferAddress_FUNC);
+	return rc;
+}
+
 JNIEXPORT jint JNICALL Native_NATIVE(celt_1decode)
 	(JNIEnv *env, jclass that, jlong arg0, jbyteArray arg1, jint arg2, jshortArray arg3)
 {
@@ -25,6 +35,16 @@ fail:
 	return rc;
 }
 
+JNIEXPORT jint JNICALL Native_NATIVE(celt_1decode_1direct)
+	(JNIEnv *env, jclass that, jlong arg0, jlong arg1, jint arg2, jlong arg3)
+{
+	jint rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_celt_1decode_1direct_FUNC);
+	rc = wrap_celt_decode((CELTDecoder *)(intptr_t)arg0, (unsigned char *)(intptr_t)arg1, arg2, (short *)(intptr_t)arg3);
+	Native_NATIVE_EXIT(env, that, Native_celt_1decode_1direct_FUNC);
+	return rc;
+}
+
 JNIEXPORT jint JNICALL Native_NATIVE(celt_1decode_1float)
 	(JNIEnv *env, jclass that, jlong arg0, jbyteArray arg1, jint arg2, jfloatArray arg3)
 {
@@ -42,6 +62,26 @@ fail:
 	return rc;
 }
 
+JNIEXPORT jint JNICALL Native_NATIVE(celt_1decode_1float_1direct)
+	(JNIEnv *env, jclass that, jlong arg0, jlong arg1, jint arg2, jlong arg3)
+{
+	jint rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_celt_1decode_1float_1direct_FUNC);
+	rc = wrap_celt_decode_float((CELTDecoder *)(intptr_t)arg0, (unsigned char *)(intptr_t)arg1, arg2, (float *)(intptr_t)arg3);
+	Native_NATIVE_EXIT(env, that, Native_celt_1decode_1float_1direct_FUNC);
+	return rc;
+}
+
+JNIEXPORT jint JNICALL Native_NATIVE(celt_1decode_1mix_1direct)
+	(JNIEnv *env, jclass that, jlong arg0, jint arg1, jlong arg2, jlong arg3, jlong arg4, jint arg5, jlong arg6)
+{
+	jint rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_celt_1decode_1mix_1direct_FUNC);
+	rc = wrap_celt_decode_mix((const jlong *)(intptr_t)arg0, arg1, (const unsigned char *)(intptr_t)arg2, (const jint *)(intptr_t)arg3, (short *)(intptr_t)arg4, arg5, (jint *)(intptr_t)arg6);
+	Native_NATIVE_EXIT(env, that, Native_celt_1decode_1mix_1direct_FUNC);
+	return rc;
+}
+
 JNIEXPORT jlong JNICALL Native_NATIVE(celt_1decoder_1create)
 	(JNIEnv *env, jclass that, jlong arg0, jint arg1)
 {
@@ -52,6 +92,14 @@ JNIEXPORT jlong JNICALL Native_NATIVE(celt_1decoder_1create)
 	return rc;
 }
 
+JNIEXPORT void JNICALL Native_NATIVE(celt_1decoder_1ctl)
+	(JNIEnv *env, jclass that, jlong arg0, jint arg1, jint arg2)
+{
+	Native_NATIVE_ENTER(env, that, Native_celt_1decoder_1ctl_FUNC);
+	celt_decoder_ctl((CELTDecoder *)(intptr_t)arg0, arg1, arg2);
+	Native_NATIVE_EXIT(env, that, Native_celt_1decoder_1ctl_FUNC);
+}
+
 JNIEXPORT void JNICALL Native_NATIVE(celt_1decoder_1destroy)
 	(JNIEnv *env, jclass that, jlong arg0)
 {
@@ -77,6 +125,16 @@ fail:
 	return rc;
 }
 
+JNIEXPORT jint JNICALL Native_NATIVE(celt_1encode_1direct)
+	(JNIEnv *env, jclass that, jlong arg0, jlong arg1, jlong arg2, jint arg3)
+{
+	jint rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_celt_1encode_1direct_FUNC);
+	rc = wrap_celt_encode((CELTEncoder *)(intptr_t)arg0, (jshort *)(intptr_t)arg1, (unsigned char *)(intptr_t)arg2, arg3);
+	Native_NATIVE_EXIT(env, that, Native_celt_1encode_1direct_FUNC);
+	return rc;
+}
+
 JNIEXPORT jlong JNICALL Native_NATIVE(celt_1encoder_1create)
 	(JNIEnv *env, jclass that, jlong arg0, jint arg1)
 {
@@ -256,3 +314,13 @@ fail:
 	return rc;
 }
 
+JNIEXPORT jint JNICALL Native_NATIVE(speex_1resampler_1process_1int_1direct)
+	(JNIEnv *env, jclass that, jlong arg0, jint arg1, jlong arg2, jlong arg3, jlong arg4, jlong arg5)
+{
+	jint rc = 0;
+	Native_NATIVE_ENTER(env, that, Native_speex_1resampler_1process_1int_1direct_FUNC);
+	rc = speex_resampler_process_int((SpeexResamplerState *)(intptr_t)arg0, arg1, (jshort *)(intptr_t)arg2, (jint *)(intptr_t)arg3, (jshort *)(intptr_t)arg4, (jint *)(intptr_t)arg5);
+	Native_NATIVE_EXIT(env, that, Native_speex_1resampler_1process_1int_1direct_FUNC);
+	return rc;
+}
+
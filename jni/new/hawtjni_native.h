@@ -4,6 +4,7 @@
 #include "celt.h"
 #include <stdint.h>
 #include <stdlib.h>
+#include <string.h>
 #include <jni.h>
 
 typedef struct SpeexResamplerState SpeexResamplerState;
@@ -55,6 +56,31 @@ static int wrap_celt_decode_float(CELTDecoder *st, unsigned char *data, int len,
 	return celt_decode_float(st, data, len, pcm);
 }
 
+/*
+ * Decodes one frame for each of count decoders and sums them into mix.
+ * The packets are stored one after another in data, a length of 0 conceals
+ * the frame. The decoded frames are stored one after another in pcm.
+ * Returns CELT_OK or the last error.
+ */
+static int wrap_celt_decode_mix(const jlong *decoders, int count, const unsigned char *data, const jint *lengths, short *pcm, int frame_size, jint *mix) {
+	int i, j, res = CELT_OK;
+	const unsigned char *packet = data;
+
+	memset(mix, 0, frame_size * sizeof(jint));
+	for (i = 0; i < count; ++i) {
+		short *out = pcm + i * frame_size;
+		int r = celt_decode((CELTDecoder *)(intptr_t)decoders[i], lengths[i] > 0 ? (unsigned char *)packet : NULL, lengths[i], out);
+		if (r != CELT_OK) {
+			res = r;
+		}
+		for (j = 0; j < frame_size; ++j) {
+			mix[j] += out[j];
+		}
+		packet += lengths[i];
+	}
+	return res;
+}
+
 static SpeexResamplerState *wrap_speex_resampler_init(unsigned int nb_channels, unsigned int in_rate, unsigned int out_rate, int quality) {
 	return speex_resampler_init(nb_channels, in_rate, out_rate, quality, NULL);
 }
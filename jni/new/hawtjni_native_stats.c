@@ -4,14 +4,20 @@
 
 #ifdef NATIVE_STATS
 
-int Native_nativeFunctionCount = 21;
-int Native_nativeFunctionCallCount[21];
+int Native_nativeFunctionCount = 28;
+int Native_nativeFunctionCallCount[28];
 char * Native_nativeFunctionNames[] = {
+	"GetDirectBufferAddress",
 	"celt_1decode",
+	"celt_1decode_1direct",
 	"celt_1decode_1float",
+	"celt_1decode_1float_1direct",
+	"celt_1decode_1mix_1direct",
 	"celt_1decoder_1create",
+	"celt_1decoder_1ctl",
 	"celt_1decoder_1destroy",
 	"celt_1encode",
+	"celt_1encode_1direct",
 	"celt_1encoder_1create",
 	"celt_1encoder_1ctl",
 	"celt_1encoder_1destroy",
@@ -28,6 +34,7 @@ char * Native_nativeFunctionNames[] = {
 	"speex_1resampler_1destroy",
 	"speex_1resampler_1init",
 	"speex_1resampler_1process_1int",
+	"speex_1resampler_1process_1int_1direct",
 };
 
 #define STATS_NATIVE(func) Java_org_fusesource_hawtjni_runtime_NativeStats_##func
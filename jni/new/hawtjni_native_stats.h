@@ -15,11 +15,17 @@ extern char* Native_nativeFunctionNames[];
 #endif
 
 typedef enum {
+	Native_GetDirectBufferAddress_FUNC,
 	Native_celt_1decode_FUNC,
+	Native_celt_1decode_1direct_FUNC,
 	Native_celt_1decode_1float_FUNC,
+	Native_celt_1decode_1float_1direct_FUNC,
+	Native_celt_1decode_1mix_1direct_FUNC,
 	Native_celt_1decoder_1create_FUNC,
+	Native_celt_1decoder_1ctl_FUNC,
 	Native_celt_1decoder_1destroy_FUNC,
 	Native_celt_1encode_FUNC,
+	Native_celt_1encode_1direct_FUNC,
 	Native_celt_1encoder_1create_FUNC,
 	Native_celt_1encoder_1ctl_FUNC,
 	Native_celt_1encoder_1destroy_FUNC,
@@ -36,4 +42,5 @@ typedef enum {
 	Native_speex_1resampler_1destroy_FUNC,
 	Native_speex_1resampler_1init_FUNC,
 	Native_speex_1resampler_1process_1int_FUNC,
+	Native_speex_1resampler_1process_1int_1direct_FUNC,
 } Native_FUNCS;
@@ -13,12 +13,25 @@ public class Settings {
 	public static final String PREF_JITTER = "buffering";
 	public static final String ARRAY_JITTER_NONE = "none";
 	public static final String ARRAY_JITTER_SPEEX = "speex";
+	public static final String ARRAY_JITTER_JAVA = "java";
+
+	public static final String PREF_TRANSMIT = "transmit";
+	public static final String ARRAY_TRANSMIT_PTT = "ptt";
+	public static final String ARRAY_TRANSMIT_VOICE = "voice";
 
 	public static final String PREF_QUALITY = "quality";
 	private static final String DEFAULT_QUALITY = "60000";
 
 	public static final String PREF_PROXIMITY = "proximity";
 
+	public static final String PREF_LIMITER = "limiter";
+
+	public static final String PREF_BATCH_MIXING = "batchMixing";
+
+	public static final String PREF_PRE_ROLL = "preRoll";
+
+	public static final String PREF_SELECTOR = "selector";
+
 	private final SharedPreferences preferences;
 
 	public Settings(final Context ctx) {
@@ -35,12 +48,41 @@ public class Settings {
 			: AudioManager.STREAM_VOICE_CALL;
 	}
 
-	public boolean isJitterBuffer() {
-		return preferences.getString(PREF_JITTER, ARRAY_JITTER_NONE).equals(
-			ARRAY_JITTER_SPEEX);
+	/**
+	 * @return One of the ARRAY_JITTER_* values.
+	 */
+	public String getJitterBuffer() {
+		final String buffer = preferences.getString(PREF_JITTER, ARRAY_JITTER_NONE);
+		// The Java buffer isn't offered until it has been checked against
+		// the native one. Users who picked it before get the native buffer.
+		if (buffer.equals(ARRAY_JITTER_JAVA)) {
+			return ARRAY_JITTER_SPEEX;
+		}
+		return buffer;
+	}
+
+	public boolean isBatchMixing() {
+		return preferences.getBoolean(PREF_BATCH_MIXING, false);
+	}
+
+	public boolean isPreRoll() {
+		return preferences.getBoolean(PREF_PRE_ROLL, false);
 	}
 
 	public boolean isProximityEnabled() {
 		return preferences.getBoolean(PREF_PROXIMITY, true);
 	}
+
+	public boolean isSoftLimiter() {
+		return preferences.getBoolean(PREF_LIMITER, false);
+	}
+
+	public boolean isSelectorEngine() {
+		return preferences.getBoolean(PREF_SELECTOR, false);
+	}
+
+	public boolean isVoiceActivity() {
+		return preferences.getString(PREF_TRANSMIT, ARRAY_TRANSMIT_PTT).equals(
+			ARRAY_TRANSMIT_VOICE);
+	}
 }
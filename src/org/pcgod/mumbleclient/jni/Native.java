@@ -27,6 +27,13 @@ public class Native {
 		public int user_data;
 	}
 
+	/**
+	 * Address of a direct buffer, for the _direct variants below. Those work
+	 * on native memory without pinning or copying Java arrays.
+	 */
+	@JniMethod(flags = {JNI, POINTER_RETURN}, cast = "void *")
+	public final static native long GetDirectBufferAddress(Object buf);
+
 	@JniMethod(accessor = "wrap_celt_mode_create", cast = "CELTMode *")
 	public final static native long celt_mode_create(int Fs, int frame_size);
 	public final static native void celt_mode_destroy(@JniArg(cast = "CELTMode *") long mode);
@@ -37,19 +44,30 @@ public class Native {
 	public final static native void celt_encoder_ctl(@JniArg(cast = "CELTEncoder *") long st, int request, int value);
 	@JniMethod(accessor = "wrap_celt_encode")
 	public final static native int celt_encode(@JniArg(cast = "CELTEncoder *") long st, @JniArg(flags = {NO_OUT}) short[] pcm, @JniArg(cast = "unsigned char *", flags = {NO_IN}) byte[] compressed, int nbCompressedBytes);
+	@JniMethod(accessor = "wrap_celt_encode")
+	public final static native int celt_encode_direct(@JniArg(cast = "CELTEncoder *") long st, @JniArg(cast = "jshort *") long pcm, @JniArg(cast = "unsigned char *") long compressed, int nbCompressedBytes);
 
 	@JniMethod(accessor = "wrap_celt_decoder_create", cast = "CELTDecoder *")
 	public final static native long celt_decoder_create(@JniArg(cast = "CELTMode *") long mode, int channels);
 	public final static native void celt_decoder_destroy(@JniArg(cast = "CELTDecoder *") long st);
+	public final static native void celt_decoder_ctl(@JniArg(cast = "CELTDecoder *") long st, int request, int value);
 	@JniMethod(accessor = "wrap_celt_decode")
 	public final static native int celt_decode(@JniArg(cast = "CELTDecoder *") long st, @JniArg(cast = "unsigned char *", flags = {NO_OUT}) byte[] data, int len, @JniArg(flags = {NO_IN}) short[] pcm);
+	@JniMethod(accessor = "wrap_celt_decode")
+	public final static native int celt_decode_direct(@JniArg(cast = "CELTDecoder *") long st, @JniArg(cast = "unsigned char *") long data, int len, @JniArg(cast = "short *") long pcm);
 	@JniMethod(accessor = "wrap_celt_decode_float")
 	public final static native int celt_decode_float(@JniArg(cast = "CELTDecoder *") long st, @JniArg(cast = "unsigned char *", flags = {NO_OUT}) byte[] data, int len, @JniArg(flags = {NO_IN}) float[] pcm);
+	@JniMethod(accessor = "wrap_celt_decode_mix")
+	public final static native int celt_decode_mix_direct(@JniArg(cast = "const jlong *") long decoders, int count, @JniArg(cast = "const unsigned char *") long data, @JniArg(cast = "const jint *") long lengths, @JniArg(cast = "short *") long pcm, int frame_size, @JniArg(cast = "jint *") long mix);
+	@JniMethod(accessor = "wrap_celt_decode_float")
+	public final static native int celt_decode_float_direct(@JniArg(cast = "CELTDecoder *") long st, @JniArg(cast = "unsigned char *") long data, int len, @JniArg(cast = "float *") long pcm);
 
 	@JniMethod(accessor = "wrap_speex_resampler_init", cast = "SpeexResamplerState *")
 	public final static native long speex_resampler_init(long nb_channels, long in_rate, long out_rate, int quality);
 	public final static native void speex_resampler_destroy(@JniArg(cast = "SpeexResamplerState *") long st);
 	public final static native int speex_resampler_process_int(@JniArg(cast = "SpeexResamplerState *") long st, int channel_index, @JniArg(flags = {NO_OUT}) short[] in, int[] in_len, @JniArg(flags = {NO_IN}) short[] out, int[] out_len);
+	@JniMethod(accessor = "speex_resampler_process_int")
+	public final static native int speex_resampler_process_int_direct(@JniArg(cast = "SpeexResamplerState *") long st, int channel_index, @JniArg(cast = "jshort *") long in, @JniArg(cast = "jint *") long in_len, @JniArg(cast = "jshort *") long out, @JniArg(cast = "jint *") long out_len);
 
 	public final static native @JniMethod(cast = "JitterBuffer *") long jitter_buffer_init(int step_size);
 	public final static native void jitter_buffer_destroy(@JniArg(cast = "JitterBuffer *") long jitter);
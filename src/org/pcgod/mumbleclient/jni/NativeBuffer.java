@@ -0,0 +1,58 @@
+package org.pcgod.mumbleclient.jni;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffer in native byte order together with its native address, for
+ * the _direct variants in Native.
+ *
+ * Passing the address doesn't pin or copy anything, so the buffers should be
+ * allocated once and reused. Direct memory is only freed by the GC.
+ */
+public final class NativeBuffer {
+	private final ByteBuffer buffer;
+	private final long address;
+
+	public NativeBuffer(final int capacity) {
+		buffer = ByteBuffer.allocateDirect(capacity);
+		buffer.order(ByteOrder.nativeOrder());
+		address = Native.GetDirectBufferAddress(buffer);
+		if (address == 0) {
+			throw new RuntimeException("Direct buffers not supported");
+		}
+	}
+
+	/**
+	 * @return Native address of the first byte.
+	 */
+	public long address() {
+		return address;
+	}
+
+	/**
+	 * @return Native address of the byte at offset.
+	 * @throws IndexOutOfBoundsException
+	 *             If the offset is outside the buffer.
+	 */
+	public long address(final int offset) {
+		if (offset < 0 || offset >= buffer.capacity()) {
+			throw new IndexOutOfBoundsException("Offset " + offset +
+												", capacity " +
+												buffer.capacity());
+		}
+		return address + offset;
+	}
+
+	/**
+	 * @return The buffer. Its position and limit are free for the caller to
+	 *         use, they don't affect the addresses.
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int capacity() {
+		return buffer.capacity();
+	}
+}
@@ -0,0 +1,167 @@
+package org.pcgod.mumbleclient.jni;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pcgod.mumbleclient.Globals;
+
+/**
+ * Owner of a native pointer from Native.
+ *
+ * The pointer is freed exactly once by close(). The live handles are counted
+ * by type along with an estimate of the native memory they hold, so leaks
+ * show up in the log instead of as slowly growing memory use. A handle that
+ * is collected without being closed is counted as leaked and freed then.
+ *
+ * get() and close() must not race. The owner has to make sure the pointer
+ * isn't in use when it closes the handle.
+ */
+public final class NativeHandle {
+	public enum Type {
+		CELT_MODE(32 * 1024) {
+			@Override
+			void destroy(final long pointer) {
+				Native.celt_mode_destroy(pointer);
+			}
+		},
+		CELT_ENCODER(16 * 1024) {
+			@Override
+			void destroy(final long pointer) {
+				Native.celt_encoder_destroy(pointer);
+			}
+		},
+		CELT_DECODER(12 * 1024) {
+			@Override
+			void destroy(final long pointer) {
+				Native.celt_decoder_destroy(pointer);
+			}
+		},
+		SPEEX_RESAMPLER(16 * 1024) {
+			@Override
+			void destroy(final long pointer) {
+				Native.speex_resampler_destroy(pointer);
+			}
+		},
+		JITTER_BUFFER(8 * 1024) {
+			@Override
+			void destroy(final long pointer) {
+				Native.jitter_buffer_destroy(pointer);
+			}
+		};
+
+		/** Rough native size of one instance, for the accounting only */
+		final int estimatedBytes;
+		final AtomicInteger live = new AtomicInteger();
+		final AtomicInteger leaked = new AtomicInteger();
+
+		private Type(final int estimatedBytes) {
+			this.estimatedBytes = estimatedBytes;
+		}
+
+		abstract void destroy(long pointer);
+	}
+
+	private static final AtomicLong liveBytes = new AtomicLong();
+
+	/**
+	 * @return Estimated native memory held by the live handles in bytes.
+	 */
+	public static long getLiveBytes() {
+		return liveBytes.get();
+	}
+
+	public static int getLiveCount(final Type type) {
+		return type.live.get();
+	}
+
+	/**
+	 * @return Handles that were collected without being closed.
+	 */
+	public static int getLeakedCount(final Type type) {
+		return type.leaked.get();
+	}
+
+	public static void logStats(final Object source) {
+		final StringBuilder sb = new StringBuilder("Native handles:");
+		for (final Type type : Type.values()) {
+			sb.append(String.format(
+				" %s %d (%d leaked),",
+				type,
+				type.live.get(),
+				type.leaked.get()));
+		}
+		sb.append(String.format(" about %d kB", liveBytes.get() / 1024));
+		Globals.logInfo(source, sb.toString());
+	}
+
+	/**
+	 * Takes ownership of a pointer returned by Native.
+	 *
+	 * @throws RuntimeException
+	 *             If the pointer is null, the native call failed.
+	 */
+	public static NativeHandle wrap(final Type type, final long pointer) {
+		if (pointer == 0) {
+			throw new RuntimeException("Could not create native " + type);
+		}
+		return new NativeHandle(type, pointer);
+	}
+
+	private final Type type;
+	private volatile long pointer;
+
+	private NativeHandle(final Type type, final long pointer) {
+		this.type = type;
+		this.pointer = pointer;
+		type.live.incrementAndGet();
+		liveBytes.addAndGet(type.estimatedBytes);
+	}
+
+	/**
+	 * Frees the native object. Does nothing if the handle is already closed.
+	 */
+	public void close() {
+		final long p;
+		synchronized (this) {
+			p = pointer;
+			pointer = 0;
+		}
+		if (p == 0) {
+			return;
+		}
+
+		type.destroy(p);
+		type.live.decrementAndGet();
+		liveBytes.addAndGet(-type.estimatedBytes);
+	}
+
+	/**
+	 * @return The native pointer.
+	 * @throws IllegalStateException
+	 *             If the handle has been closed.
+	 */
+	public long get() {
+		final long p = pointer;
+		if (p == 0) {
+			throw new IllegalStateException("Native " + type + " is closed");
+		}
+		return p;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public boolean isClosed() {
+		return pointer == 0;
+	}
+
+	@Override
+	protected void finalize() {
+		if (pointer != 0) {
+			type.leaked.incrementAndGet();
+			Globals.logWarn(this, "Native " + type + " was not closed");
+			close();
+		}
+	}
+}
@@ -12,8 +12,30 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class CryptState {
+	/**
+	 * Bytes added in front of the payload by encryption: IV byte and 3 bytes
+	 * of the OCB tag.
+	 */
+	public static final int HEADER_SIZE = 4;
+
 	private static final int AES_BLOCK_SIZE = 16;
 
+	/**
+	 * Initial size of the batch buffers, enough for any voice packet. They grow
+	 * if a larger packet comes along.
+	 */
+	private static final int INITIAL_BATCH_SIZE = 1024;
+
+	/**
+	 * Returns block if it holds at least size bytes, a larger array otherwise.
+	 */
+	private static byte[] ensureCapacity(final byte[] block, final int size) {
+		if (block.length >= size) {
+			return block;
+		}
+		return new byte[Math.max(size, block.length * 2)];
+	}
+
 	private static void S2(final byte[] block) {
 		final int carry = (block[0] >> 7) & 0x1;
 		for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
@@ -40,244 +62,418 @@ public class CryptState {
 		Arrays.fill(block, (byte) 0);
 	}
 
+	/**
+	 * Fills offsets with the OCB offset of every full block followed by the
+	 * offset of the final block. delta is left at the final block's offset.
+	 */
+	private static void fillOffsets(
+		final byte[] offsets,
+		final byte[] delta,
+		final int bulk) {
+		for (int i = 0; i <= bulk; i += AES_BLOCK_SIZE) {
+			S2(delta);
+			System.arraycopy(delta, 0, offsets, i, AES_BLOCK_SIZE);
+		}
+	}
+
 	private final byte[] decryptHistory = new byte[256];
 
+	// Scratch blocks for encrypting so sending a packet doesn't allocate.
+	private final byte[] encryptChecksum = new byte[AES_BLOCK_SIZE];
+	private final byte[] encryptDelta = new byte[AES_BLOCK_SIZE];
+	private final byte[] encryptPad = new byte[AES_BLOCK_SIZE];
+	private final byte[] encryptTag = new byte[AES_BLOCK_SIZE];
+	private final byte[] encryptTmp = new byte[AES_BLOCK_SIZE];
+	private byte[] encryptOffsets = new byte[INITIAL_BATCH_SIZE];
+	private byte[] encryptWork = new byte[INITIAL_BATCH_SIZE];
+	// The cipher copies its input when encrypting in place, so the output
+	// goes to a separate buffer.
+	private byte[] encryptOut = new byte[INITIAL_BATCH_SIZE];
+
+	// Scratch blocks for decrypting so receiving a packet doesn't allocate.
+	private final byte[] decryptChecksum = new byte[AES_BLOCK_SIZE];
+	private final byte[] decryptDelta = new byte[AES_BLOCK_SIZE];
+	private final byte[] decryptPad = new byte[AES_BLOCK_SIZE];
+	private final byte[] decryptSaveIv = new byte[AES_BLOCK_SIZE];
+	private final byte[] decryptTag = new byte[AES_BLOCK_SIZE];
+	private final byte[] decryptTmp = new byte[AES_BLOCK_SIZE];
+	private byte[] decryptOffsets = new byte[INITIAL_BATCH_SIZE];
+	private byte[] decryptWork = new byte[INITIAL_BATCH_SIZE];
+	private byte[] decryptOut = new byte[INITIAL_BATCH_SIZE];
+
+	/**
+	 * Guards the encrypt side: encryptIv, encryptCipher and the encrypt
+	 * scratch blocks.
+	 */
+	private final Object encryptLock = new Object();
+
+	/**
+	 * Guards the decrypt side: decryptIv, decryptHistory, both decrypt
+	 * ciphers, the decrypt scratch blocks and the packet statistics.
+	 *
+	 * The two sides share no state so the record thread encrypting and the
+	 * UDP reader decrypting don't block each other. setKeys() takes both locks,
+	 * always encryptLock first.
+	 */
+	private final Object decryptLock = new Object();
+
 	private Cipher encryptCipher;
 	private Cipher decryptCipher;
+	/**
+	 * OCB decryption needs the forward cipher for the offsets and the tag.
+	 * Cipher instances aren't thread safe so the decrypt side has its own.
+	 */
+	private Cipher decryptOffsetCipher;
 	private byte[] encryptIv;
 	private byte[] decryptIv;
-	private boolean initialized = false;
-	private int good;
-	private int late;
-	private int lost;
+	private volatile boolean initialized = false;
+	// Counted by decrypt, read by anyone.
+	private volatile int good;
+	private volatile int late;
+	private volatile int lost;
+
+	public byte[] decrypt(final byte[] source, final int length) {
+		if (length < HEADER_SIZE) {
+			return null;
+		}
 
-	public synchronized byte[] decrypt(final byte[] source, final int length) {
-		if (length < 4) {
+		final byte[] dst = new byte[length - HEADER_SIZE];
+		if (decrypt(source, length, dst, 0) < 0) {
 			return null;
 		}
+		return dst;
+	}
 
-		final int plain_length = length - 4;
-		final byte[] dst = new byte[plain_length];
+	/**
+	 * Decrypts the source into a caller owned buffer without allocating.
+	 *
+	 * The destination may be the source buffer itself at offset HEADER_SIZE
+	 * which decrypts the packet in place.
+	 *
+	 * @param source
+	 *            Encrypted packet
+	 * @param length
+	 *            Length of the encrypted packet
+	 * @param dst
+	 *            Destination buffer, must have room for length - HEADER_SIZE
+	 *            bytes
+	 * @param dstOffset
+	 *            Offset of the plain data in dst
+	 * @return Length of the plain data or -1 if the packet was rejected
+	 */
+	public int decrypt(
+		final byte[] source,
+		final int length,
+		final byte[] dst,
+		final int dstOffset) {
+		synchronized (decryptLock) {
+			if (length < HEADER_SIZE) {
+				return -1;
+			}
 
-		final byte[] saveiv = new byte[AES_BLOCK_SIZE];
-		final short ivbyte = (short) (source[0] & 0xFF);
-		boolean restore = false;
-		final byte[] tag = new byte[AES_BLOCK_SIZE];
+			final int plain_length = length - HEADER_SIZE;
 
-		int lost = 0;
-		int late = 0;
+			final byte[] saveiv = decryptSaveIv;
+			final short ivbyte = (short) (source[0] & 0xFF);
+			boolean restore = false;
+			final byte[] tag = decryptTag;
 
-		System.arraycopy(decryptIv, 0, saveiv, 0, AES_BLOCK_SIZE);
+			int lost = 0;
+			int late = 0;
 
-		if (((decryptIv[0] + 1) & 0xFF) == ivbyte) {
-			// In order as expected.
-			if (ivbyte > (decryptIv[0] & 0xFF)) {
-				decryptIv[0] = (byte) ivbyte;
-			} else if (ivbyte < (decryptIv[0] & 0xFF)) {
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((++decryptIv[i]) != 0) {
-						break;
+			System.arraycopy(decryptIv, 0, saveiv, 0, AES_BLOCK_SIZE);
+
+			if (((decryptIv[0] + 1) & 0xFF) == ivbyte) {
+				// In order as expected.
+				if (ivbyte > (decryptIv[0] & 0xFF)) {
+					decryptIv[0] = (byte) ivbyte;
+				} else if (ivbyte < (decryptIv[0] & 0xFF)) {
+					decryptIv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((++decryptIv[i]) != 0) {
+							break;
+						}
 					}
+				} else {
+					return -1;
 				}
 			} else {
-				return null;
-			}
-		} else {
-			// This is either out of order or a repeat.
-			int diff = ivbyte - (decryptIv[0] & 0xFF);
-			if (diff > 128) {
-				diff = diff - 256;
-			} else if (diff < -128) {
-				diff = diff + 256;
-			}
+				// This is either out of order or a repeat.
+				int diff = ivbyte - (decryptIv[0] & 0xFF);
+				if (diff > 128) {
+					diff = diff - 256;
+				} else if (diff < -128) {
+					diff = diff + 256;
+				}
 
-			if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
-				// Late packet, but no wraparound.
-				late = 1;
-				lost = -1;
-				decryptIv[0] = (byte) ivbyte;
-				restore = true;
-			} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > -30) &&
-					   (diff < 0)) {
-				// Last was 0x02, here comes 0xff from last round
-				late = 1;
-				lost = -1;
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((decryptIv[i]--) != 0) {
-						break;
+				if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
+					// Late packet, but no wraparound.
+					late = 1;
+					lost = -1;
+					decryptIv[0] = (byte) ivbyte;
+					restore = true;
+				} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > -30) &&
+						   (diff < 0)) {
+					// Last was 0x02, here comes 0xff from last round
+					late = 1;
+					lost = -1;
+					decryptIv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((decryptIv[i]--) != 0) {
+							break;
+						}
 					}
-				}
-				restore = true;
-			} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > 0)) {
-				// Lost a few packets, but beyond that we're good.
-				lost = ivbyte - decryptIv[0] - 1;
-				decryptIv[0] = (byte) ivbyte;
-			} else if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > 0)) {
-				// Lost a few packets, and wrapped around
-				lost = 256 - (decryptIv[0] & 0xFF) + ivbyte - 1;
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((++decryptIv[i]) != 0) {
-						break;
+					restore = true;
+				} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > 0)) {
+					// Lost a few packets, but beyond that we're good.
+					lost = ivbyte - (decryptIv[0] & 0xFF) - 1;
+					decryptIv[0] = (byte) ivbyte;
+				} else if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > 0)) {
+					// Lost a few packets, and wrapped around
+					lost = 256 - (decryptIv[0] & 0xFF) + ivbyte - 1;
+					decryptIv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((++decryptIv[i]) != 0) {
+							break;
+						}
 					}
+				} else {
+					return -1;
+				}
+
+				if (decryptHistory[decryptIv[0] & 0xFF] == decryptIv[1]) {
+					System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+					return -1;
 				}
-			} else {
-				return null;
 			}
 
-			if (decryptHistory[decryptIv[0] & 0xFF] == encryptIv[0]) {
+			try {
+				ocbDecrypt(
+					source,
+					HEADER_SIZE,
+					plain_length,
+					dst,
+					dstOffset,
+					decryptIv,
+					tag);
+			} catch (final IllegalBlockSizeException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (final BadPaddingException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (final ShortBufferException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+
+			if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
 				System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
-				return null;
+				return -1;
 			}
-		}
+			decryptHistory[decryptIv[0] & 0xFF] = decryptIv[1];
 
-		final byte[] newsrc = new byte[plain_length];
-		System.arraycopy(source, 4, newsrc, 0, plain_length);
-		try {
-			ocbDecrypt(newsrc, dst, decryptIv, tag);
-		} catch (final IllegalBlockSizeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final ShortBufferException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+			if (restore) {
+				System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+			}
 
-		if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
-			System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
-			return null;
-		}
-		decryptHistory[decryptIv[0] & 0xFF] = decryptIv[1];
+			good++;
+			this.late += late;
+			this.lost += lost;
 
-		if (restore) {
-			System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+			return plain_length;
 		}
+	}
 
-		good++;
-		this.late += late;
-		this.lost += lost;
-
+	public byte[] encrypt(final byte[] source, final int length) {
+		final byte[] dst = new byte[length + HEADER_SIZE];
+		encrypt(source, length, dst, 0);
 		return dst;
 	}
 
-	public synchronized byte[] encrypt(final byte[] source, final int length) {
-		final byte[] tag = new byte[AES_BLOCK_SIZE];
+	/**
+	 * Encrypts the source into a caller owned buffer without allocating.
+	 *
+	 * @param source
+	 *            Plain data
+	 * @param length
+	 *            Length of the plain data
+	 * @param dst
+	 *            Destination buffer, must have room for length + HEADER_SIZE
+	 *            bytes
+	 * @param dstOffset
+	 *            Offset of the encrypted packet in dst
+	 * @return Length of the encrypted packet
+	 */
+	public int encrypt(
+		final byte[] source,
+		final int length,
+		final byte[] dst,
+		final int dstOffset) {
+		synchronized (encryptLock) {
+			final byte[] tag = encryptTag;
+
+			// First, increase our IV.
+			for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+				if ((++encryptIv[i]) != 0) {
+					break;
+				}
+			}
 
-		// First, increase our IV.
-		for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-			if ((++encryptIv[i]) != 0) {
-				break;
+			try {
+				ocbEncrypt(
+					source,
+					length,
+					dst,
+					dstOffset + HEADER_SIZE,
+					encryptIv,
+					tag);
+			} catch (final IllegalBlockSizeException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (final BadPaddingException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (final ShortBufferException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
 			}
+
+			dst[dstOffset] = encryptIv[0];
+			dst[dstOffset + 1] = tag[0];
+			dst[dstOffset + 2] = tag[1];
+			dst[dstOffset + 3] = tag[2];
+
+			return length + HEADER_SIZE;
 		}
+	}
 
-		final byte[] dst = new byte[length + 4];
-		try {
-			ocbEncrypt(source, length, dst, encryptIv, tag);
-		} catch (final IllegalBlockSizeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final ShortBufferException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	public byte[] getClientNonce() {
+		synchronized (encryptLock) {
+			return encryptIv.clone();
 		}
+	}
 
-		System.arraycopy(dst, 0, dst, 4, length);
-		dst[0] = encryptIv[0];
-		dst[1] = tag[0];
-		dst[2] = tag[1];
-		dst[3] = tag[2];
+	public int getGood() {
+		return good;
+	}
 
-		return dst;
+	public int getLate() {
+		return late;
 	}
 
-	public synchronized byte[] getClientNonce() {
-		return encryptIv;
+	public int getLost() {
+		return lost;
 	}
 
-	public synchronized byte[] getServerNonce() {
-		return decryptIv;
+	public byte[] getServerNonce() {
+		synchronized (decryptLock) {
+			return decryptIv.clone();
+		}
 	}
 
 	public boolean isInitialized() {
 		return initialized;
 	}
 
-	public synchronized void setClientNonce(final byte[] newNonce) {
-		encryptIv = newNonce;
+	public void setClientNonce(final byte[] newNonce) {
+		synchronized (encryptLock) {
+			encryptIv = newNonce;
+		}
 	}
 
-	public synchronized void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) {
-		initialized = false;
-		try {
-			encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
-			decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
-		} catch (final NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return;
-		} catch (final NoSuchPaddingException e) {
-			e.printStackTrace();
-			return;
-		}
+	public void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) {
+		synchronized (encryptLock) {
+			synchronized (decryptLock) {
+				initialized = false;
+				try {
+					encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+					decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+					decryptOffsetCipher = Cipher.getInstance("AES/ECB/NoPadding");
+				} catch (final NoSuchAlgorithmException e) {
+					e.printStackTrace();
+					return;
+				} catch (final NoSuchPaddingException e) {
+					e.printStackTrace();
+					return;
+				}
 
-		final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
-		encryptIv = new byte[eiv.length];
-		System.arraycopy(eiv, 0, encryptIv, 0, AES_BLOCK_SIZE);
-		decryptIv = new byte[div.length];
-		System.arraycopy(div, 0, decryptIv, 0, AES_BLOCK_SIZE);
-
-		try {
-			encryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
-			decryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
-		} catch (final InvalidKeyException e) {
-			e.printStackTrace();
-			return;
-		}
+				final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
+				encryptIv = new byte[eiv.length];
+				System.arraycopy(eiv, 0, encryptIv, 0, AES_BLOCK_SIZE);
+				decryptIv = new byte[div.length];
+				System.arraycopy(div, 0, decryptIv, 0, AES_BLOCK_SIZE);
+
+				try {
+					encryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
+					decryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
+					decryptOffsetCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
+				} catch (final InvalidKeyException e) {
+					e.printStackTrace();
+					return;
+				}
 
-		initialized = true;
+				initialized = true;
+			}
+		}
 	}
 
-	public synchronized void setServerNonce(final byte[] newNonce) {
-		decryptIv = newNonce;
+	public void setServerNonce(final byte[] newNonce) {
+		synchronized (decryptLock) {
+			decryptIv = newNonce;
+		}
 	}
 
-	private synchronized void ocbDecrypt(
+	/**
+	 * OCB decryption. The offsets of all full blocks are computed up front so
+	 * the blocks go through the cipher in one call instead of one call per
+	 * block.
+	 */
+	private void ocbDecrypt(
 		final byte[] encrypted,
+		final int encryptedOffset,
+		final int encrypted_length,
 		final byte[] plain,
+		final int plainOffset,
 		final byte[] nonce,
 		final byte[] tag) throws IllegalBlockSizeException,
 		BadPaddingException, ShortBufferException {
-		final byte[] checksum = new byte[AES_BLOCK_SIZE];
-		final byte[] tmp = new byte[AES_BLOCK_SIZE];
-
-		final byte[] delta = encryptCipher.doFinal(nonce);
-
-		int offset = 0;
-		int len = encrypted.length;
-		while (len > AES_BLOCK_SIZE) {
-			final byte[] buffer = new byte[AES_BLOCK_SIZE];
-			S2(delta);
-			System.arraycopy(encrypted, offset, buffer, 0, AES_BLOCK_SIZE);
-
-			XOR(tmp, delta, buffer);
-			decryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+		final byte[] checksum = decryptChecksum;
+		final byte[] tmp = decryptTmp;
+		final byte[] delta = decryptDelta;
+		final byte[] pad = decryptPad;
+
+		// Every block but the last is a full block, the last one is 1-16 bytes.
+		final int blocks = encrypted_length > 0 ? (encrypted_length - 1) /
+													AES_BLOCK_SIZE : 0;
+		final int bulk = blocks * AES_BLOCK_SIZE;
+		final int len = encrypted_length - bulk;
+
+		decryptOffsets = ensureCapacity(decryptOffsets, bulk + AES_BLOCK_SIZE);
+		decryptWork = ensureCapacity(decryptWork, bulk);
+		decryptOut = ensureCapacity(decryptOut, bulk);
+		final byte[] offsets = decryptOffsets;
+		final byte[] work = decryptWork;
+		final byte[] out = decryptOut;
+
+		ZERO(checksum);
+		decryptOffsetCipher.doFinal(nonce, 0, AES_BLOCK_SIZE, delta);
+		fillOffsets(offsets, delta, bulk);
+
+		if (bulk > 0) {
+			for (int i = 0; i < bulk; i++) {
+				work[i] = (byte) (encrypted[encryptedOffset + i] ^ offsets[i]);
+			}
 
-			XOR(buffer, delta, tmp);
-			System.arraycopy(buffer, 0, plain, offset, AES_BLOCK_SIZE);
+			decryptCipher.doFinal(work, 0, bulk, out, 0);
 
-			XOR(checksum, checksum, buffer);
-			len -= AES_BLOCK_SIZE;
-			offset += AES_BLOCK_SIZE;
+			for (int i = 0; i < bulk; i++) {
+				final byte b = (byte) (out[i] ^ offsets[i]);
+				plain[plainOffset + i] = b;
+				checksum[i & (AES_BLOCK_SIZE - 1)] ^= b;
+			}
 		}
 
-		S2(delta);
 		ZERO(tmp);
 
 		final long num = len * 8;
@@ -285,65 +481,83 @@ public class CryptState {
 		tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
 		XOR(tmp, tmp, delta);
 
-		final byte[] pad = encryptCipher.doFinal(tmp);
+		decryptOffsetCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, pad);
 		ZERO(tmp);
-		System.arraycopy(encrypted, offset, tmp, 0, len);
+		System.arraycopy(encrypted, encryptedOffset + bulk, tmp, 0, len);
 
 		XOR(tmp, tmp, pad);
 		XOR(checksum, checksum, tmp);
 
-		System.arraycopy(tmp, 0, plain, offset, len);
+		System.arraycopy(tmp, 0, plain, plainOffset + bulk, len);
 
 		S3(delta);
 		XOR(tmp, delta, checksum);
 
-		encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+		decryptOffsetCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
 	}
 
-	private synchronized void ocbEncrypt(
+	/**
+	 * OCB encryption. The full blocks and the pad of the final block go
+	 * through the cipher in one call.
+	 */
+	private void ocbEncrypt(
 		final byte[] plain,
 		final int plain_length,
 		final byte[] encrypted,
+		final int encryptedOffset,
 		final byte[] nonce,
 		final byte[] tag) throws IllegalBlockSizeException,
 		BadPaddingException, ShortBufferException {
-		final byte[] checksum = new byte[AES_BLOCK_SIZE];
-		final byte[] tmp = new byte[AES_BLOCK_SIZE];
-
-		final byte[] delta = encryptCipher.doFinal(nonce);
-
-		int offset = 0;
-		int len = plain_length;
-		while (len > AES_BLOCK_SIZE) {
-			final byte[] buffer = new byte[AES_BLOCK_SIZE];
-			S2(delta);
-			System.arraycopy(plain, offset, buffer, 0, AES_BLOCK_SIZE);
-			XOR(checksum, checksum, buffer);
-			XOR(tmp, delta, buffer);
-
-			encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
-
-			XOR(buffer, delta, tmp);
-			System.arraycopy(buffer, 0, encrypted, offset, AES_BLOCK_SIZE);
-			len -= AES_BLOCK_SIZE;
-			offset += AES_BLOCK_SIZE;
+		final byte[] checksum = encryptChecksum;
+		final byte[] tmp = encryptTmp;
+		final byte[] delta = encryptDelta;
+		final byte[] pad = encryptPad;
+
+		// Every block but the last is a full block, the last one is 1-16 bytes.
+		final int blocks = plain_length > 0 ? (plain_length - 1) /
+												AES_BLOCK_SIZE : 0;
+		final int bulk = blocks * AES_BLOCK_SIZE;
+		final int len = plain_length - bulk;
+
+		encryptOffsets = ensureCapacity(encryptOffsets, bulk + AES_BLOCK_SIZE);
+		encryptWork = ensureCapacity(encryptWork, bulk + AES_BLOCK_SIZE);
+		encryptOut = ensureCapacity(encryptOut, bulk + AES_BLOCK_SIZE);
+		final byte[] offsets = encryptOffsets;
+		final byte[] work = encryptWork;
+		final byte[] out = encryptOut;
+
+		ZERO(checksum);
+		encryptCipher.doFinal(nonce, 0, AES_BLOCK_SIZE, delta);
+		fillOffsets(offsets, delta, bulk);
+
+		for (int i = 0; i < bulk; i++) {
+			work[i] = (byte) (plain[i] ^ offsets[i]);
+			checksum[i & (AES_BLOCK_SIZE - 1)] ^= plain[i];
 		}
 
-		S2(delta);
-		ZERO(tmp);
+		// The pad only depends on the length and the offset, so it is
+		// encrypted together with the full blocks.
 		final long num = len * 8;
-		tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
-		tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
-		XOR(tmp, tmp, delta);
+		Arrays.fill(work, bulk, bulk + AES_BLOCK_SIZE, (byte) 0);
+		work[bulk + AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
+		work[bulk + AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
+		for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+			work[bulk + i] ^= delta[i];
+		}
 
-		final byte[] pad = encryptCipher.doFinal(tmp);
+		encryptCipher.doFinal(work, 0, bulk + AES_BLOCK_SIZE, out, 0);
+
+		for (int i = 0; i < bulk; i++) {
+			encrypted[encryptedOffset + i] = (byte) (out[i] ^ offsets[i]);
+		}
+		System.arraycopy(out, bulk, pad, 0, AES_BLOCK_SIZE);
 
-		System.arraycopy(plain, offset, tmp, 0, len);
+		System.arraycopy(plain, bulk, tmp, 0, len);
 		System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
 
 		XOR(checksum, checksum, tmp);
 		XOR(tmp, pad, tmp);
-		System.arraycopy(tmp, 0, encrypted, offset, len);
+		System.arraycopy(tmp, 0, encrypted, encryptedOffset + bulk, len);
 
 		S3(delta);
 		XOR(tmp, delta, checksum);
@@ -0,0 +1,131 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * What is known of the link to the server, for the parts of the client that
+ * adapt to it.
+ *
+ * Collects the round trip times from the ping replies, the server's
+ * bandwidth limit and the packet counts of the CryptState. Written by the
+ * network threads and read by the record thread, the ping thread and the UI.
+ * Only the ping statistics take a lock.
+ */
+public class LinkStats {
+	private static final int UDP_MIN_REPLY_ALLOWANCE = 1000;
+
+	private final MumbleConnection connection;
+
+	/** Smoothed UDP round trip time in ms, -1 before the first reply */
+	private volatile int udpRtt = -1;
+
+	private final PingStats udpPings = new PingStats();
+	private final PingStats tcpPings = new PingStats();
+
+	/** Bits per second, 0 if the server didn't announce a limit */
+	private volatile int maxBandwidth;
+
+	LinkStats(final MumbleConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Records a TCP ping reply.
+	 *
+	 * @param rtt
+	 *            Round trip time in ms.
+	 */
+	public void addTcpPing(final int rtt) {
+		tcpPings.add(rtt);
+	}
+
+	/**
+	 * Records a UDP ping reply. Besides the statistics over the connection
+	 * the reply goes to a smoothed RTT that follows the recent replies like
+	 * the smoothed RTT of TCP.
+	 *
+	 * @param rtt
+	 *            Round trip time in ms.
+	 */
+	public void addUdpPing(final int rtt) {
+		udpPings.add(rtt);
+		final int old = udpRtt;
+		udpRtt = old < 0 ? rtt : old + (rtt - old) / 8;
+	}
+
+	/**
+	 * @return Voice packets from the server that arrived in order.
+	 */
+	public int getGood() {
+		return connection.cryptState.getGood();
+	}
+
+	/**
+	 * @return Voice packets from the server that arrived out of order.
+	 */
+	public int getLate() {
+		return connection.cryptState.getLate();
+	}
+
+	/**
+	 * @return Voice packets from the server that never arrived.
+	 */
+	public int getLost() {
+		return connection.cryptState.getLost();
+	}
+
+	/**
+	 * @return The server's bandwidth limit for voice in bits per second, 0 if
+	 *         unknown.
+	 */
+	public int getMaxBandwidth() {
+		return maxBandwidth;
+	}
+
+	public PingStats getTcpPings() {
+		return tcpPings;
+	}
+
+	public PingStats getUdpPings() {
+		return udpPings;
+	}
+
+	/**
+	 * Time a UDP ping reply may take before the voice falls back to the TCP
+	 * tunnel. Four standard deviations over the average, so a slow but
+	 * steady link doesn't flap between the transports, and at least a
+	 * second.
+	 *
+	 * @param max
+	 *            Upper limit in ms.
+	 * @return The time in ms.
+	 */
+	public int getUdpReplyAllowance(final int max) {
+		final int allowance;
+		synchronized (udpPings) {
+			if (udpPings.getCount() < 2) {
+				return UDP_MIN_REPLY_ALLOWANCE;
+			}
+			allowance = (int) (udpPings.getMean() + 4 *
+							   udpPings.getStandardDeviation());
+		}
+		return Math.min(Math.max(allowance, UDP_MIN_REPLY_ALLOWANCE), max);
+	}
+
+	/**
+	 * @return Smoothed UDP round trip time in ms or -1 if no UDP ping has
+	 *         been answered yet.
+	 */
+	public int getUdpRtt() {
+		return udpRtt;
+	}
+
+	/**
+	 * @return True if the voice is tunnelled over TCP.
+	 */
+	public boolean isTunnelling() {
+		return !connection.isUsingUdp();
+	}
+
+	public void setMaxBandwidth(final int maxBandwidth) {
+		this.maxBandwidth = maxBandwidth;
+	}
+}
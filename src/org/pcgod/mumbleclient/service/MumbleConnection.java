@@ -1,8 +1,8 @@
 package org.pcgod.mumbleclient.service;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -42,6 +42,10 @@ import com.google.protobuf.MessageLite;
  * reporting until all the other threads, such as PingThread or RecordThread
  * have been stopped.
  *
+ * The sockets are serviced either by dedicated reader threads or, when the
+ * selector engine is enabled, by a single SelectorEngine event loop running
+ * on the connection thread. Both report to the same MumbleProtocol.
+ *
  * @author pcgod
  */
 public class MumbleConnection implements Runnable {
@@ -116,18 +120,24 @@ public class MumbleConnection implements Runnable {
 
 		@Override
 		protected void process() throws IOException {
+			packet.setLength(UDP_BUFFER_SIZE);
 			udpSocket.receive(packet);
 
-			final byte[] buffer = cryptState.decrypt(
-				packet.getData(),
-				packet.getLength());
-
-			// Decrypt might return null if the buffer was total garbage.
-			if (buffer == null) {
+			// Decrypt in place. The plain packet ends up right after the
+			// crypt header in the same buffer.
+			final byte[] buffer = packet.getData();
+			final int length = cryptState.decrypt(
+				buffer,
+				packet.getLength(),
+				buffer,
+				CryptState.HEADER_SIZE);
+
+			// Decrypt might fail if the buffer was total garbage.
+			if (length < 0) {
 				return;
 			}
 
-			protocol.processUdp(buffer, buffer.length);
+			protocol.processUdp(buffer, CryptState.HEADER_SIZE, length);
 		}
 	};
 
@@ -138,9 +148,22 @@ public class MumbleConnection implements Runnable {
 
 	private Socket tcpSocket;
 	private DataInputStream in;
-	private DataOutputStream out;
+	private TcpFrameWriter frameWriter;
 	private DatagramSocket udpSocket;
-	private long useUdpUntil;
+
+	/**
+	 * Encrypted UDP packets are built into this buffer. The packet wrapping it
+	 * is reused for every send so voice traffic doesn't allocate. Both are
+	 * guarded by udpOutPacket.
+	 */
+	private final byte[] udpOutBuffer = new byte[UDP_BUFFER_SIZE];
+	private final DatagramPacket udpOutPacket = new DatagramPacket(
+		udpOutBuffer,
+		UDP_BUFFER_SIZE);
+
+	private final boolean useSelector;
+	private SelectorEngine engine;
+	private volatile long useUdpUntil;
 	boolean usingUdp = false;
 
 	/**
@@ -164,6 +187,7 @@ public class MumbleConnection implements Runnable {
 
 	private final Object stateLock = new Object();
 	final CryptState cryptState = new CryptState();
+	private final LinkStats linkStats = new LinkStats(this);
 
 	/**
 	 * Constructor for new connection thread.
@@ -187,18 +211,23 @@ public class MumbleConnection implements Runnable {
 	 *            Username
 	 * @param password
 	 *            Server password
+	 * @param useSelector
+	 *            True to service the sockets with a single SelectorEngine
+	 *            event loop instead of the reader threads
 	 */
 	public MumbleConnection(
 		final MumbleConnectionHost connectionHost,
 		final String host,
 		final int port,
 		final String username,
-		final String password) {
+		final String password,
+		final boolean useSelector) {
 		this.connectionHost = connectionHost;
 		this.host = host;
 		this.port = port;
 		this.username = username;
 		this.password = password;
+		this.useSelector = useSelector;
 
 		connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTING);
 	}
@@ -227,13 +256,24 @@ public class MumbleConnection implements Runnable {
 			if (udpSocket != null) {
 				udpSocket.close();
 			}
+			if (engine != null) {
+				engine.stop();
+			}
 
 			connectionHost.setConnectionState(MumbleConnectionHost.STATE_DISCONNECTED);
 			stateLock.notifyAll();
 		}
 	}
 
+	public LinkStats getLinkStats() {
+		return linkStats;
+	}
+
 	public final boolean isConnectionAlive() {
+		if (engine != null) {
+			return !disconnecting && engine.isOpen();
+		}
+
 		return !disconnecting && udpSocket != null && tcpSocket != null &&
 			   !tcpSocket.isClosed() && tcpSocket.isConnected() &&
 			   !udpSocket.isClosed();
@@ -248,10 +288,27 @@ public class MumbleConnection implements Runnable {
 			   username.equals(username_) && password.equals(password_);
 	}
 
+	/**
+	 * @return True if voice is sent over UDP, false if it's tunnelled.
+	 */
+	public boolean isUsingUdp() {
+		return useUdpUntil > System.currentTimeMillis();
+	}
+
 	public void refreshUdpLimit(final long limit) {
 		useUdpUntil = limit;
 	}
 
+	/**
+	 * Hands the ping over to the selector engine's timer.
+	 *
+	 * @param ping
+	 *            Ping to send periodically
+	 */
+	public void schedulePing(final PingThread ping) {
+		engine.schedulePing(ping);
+	}
+
 	@Override
 	public final void run() {
 		Assert.assertNotNull(protocol);
@@ -265,8 +322,19 @@ public class MumbleConnection implements Runnable {
 					port));
 
 				this.hostAddress = InetAddress.getByName(host);
-				tcpSocket = connectTcp();
-				udpSocket = connectUdp();
+				udpOutPacket.setAddress(hostAddress);
+				udpOutPacket.setPort(port);
+				if (useSelector) {
+					engine = new SelectorEngine(
+						hostAddress,
+						port,
+						protocol,
+						cryptState);
+					engine.connect();
+				} else {
+					tcpSocket = connectTcp();
+					udpSocket = connectUdp();
+				}
 				connected = true;
 			} catch (final UnknownHostException e) {
 				final String errorString = String.format(
@@ -349,18 +417,13 @@ public class MumbleConnection implements Runnable {
 		final MessageLite.Builder b) {
 		final MessageLite m = b.build();
 		final short type = (short) t.ordinal();
-		final int length = m.getSerializedSize();
 
 		if (disconnecting) {
 			return;
 		}
 
 		try {
-			synchronized (out) {
-				out.writeShort(type);
-				out.writeInt(length);
-				m.writeTo(out);
-			}
+			frameWriter.write(type, m);
 		} catch (final IOException e) {
 			handleSendingException(e);
 		}
@@ -396,20 +459,25 @@ public class MumbleConnection implements Runnable {
 				usingUdp = true;
 			}
 
-			final byte[] encryptedBuffer = cryptState.encrypt(buffer, length);
-			final DatagramPacket outPacket = new DatagramPacket(
-				encryptedBuffer,
-				encryptedBuffer.length);
-
-			outPacket.setAddress(hostAddress);
-			outPacket.setPort(port);
-
 			if (disconnecting) {
 				return;
 			}
 
 			try {
-				udpSocket.send(outPacket);
+				synchronized (udpOutPacket) {
+					final int encryptedLength = cryptState.encrypt(
+						buffer,
+						length,
+						udpOutBuffer,
+						0);
+
+					if (engine != null) {
+						engine.sendUdp(udpOutBuffer, encryptedLength);
+					} else {
+						udpOutPacket.setLength(encryptedLength);
+						udpSocket.send(udpOutPacket);
+					}
+				}
 			} catch (final IOException e) {
 				handleSendingException(e);
 			}
@@ -425,14 +493,10 @@ public class MumbleConnection implements Runnable {
 				return;
 			}
 
-			synchronized (out) {
-				try {
-					out.writeShort(type);
-					out.writeInt(length);
-					out.write(buffer, 0, length);
-				} catch (final IOException e) {
-					handleSendingException(e);
-				}
+			try {
+				frameWriter.write(type, buffer, length);
+			} catch (final IOException e) {
+				handleSendingException(e);
 			}
 		}
 	}
@@ -445,7 +509,28 @@ public class MumbleConnection implements Runnable {
 		return t;
 	}
 
+	/**
+	 * @return True if the sockets are serviced by the selector engine which
+	 *         also takes care of the periodic pings.
+	 */
+	public boolean usesSelectorEngine() {
+		return useSelector;
+	}
+
 	private void cleanConnection() {
+		if (engine != null) {
+			engine.close();
+		}
+
+		// Only the selector engine reports the records it writes.
+		if (frameWriter != null && frameWriter.getCountedFrameCount() > 0) {
+			Globals.logInfo(this, String.format(
+				"Sent %d TCP messages in %d TLS records, %.2f per message",
+				frameWriter.getCountedFrameCount(),
+				frameWriter.getRecordCount(),
+				frameWriter.getRecordsPerFrame()));
+		}
+
 		// FIXME: These throw exceptions for some reason.
 		// Even with the checks in place
 		if (tcpSocket != null && tcpSocket.isConnected()) {
@@ -467,8 +552,21 @@ public class MumbleConnection implements Runnable {
 			return;
 		}
 
-		out = new DataOutputStream(tcpSocket.getOutputStream());
-		in = new DataInputStream(tcpSocket.getInputStream());
+		if (engine == null) {
+			final OutputStream tcpOut = tcpSocket.getOutputStream();
+			frameWriter = new TcpFrameWriter(new TcpFrameWriter.FrameSink() {
+				@Override
+				public int writeFrame(final byte[] frame, final int length)
+					throws IOException {
+					// The SSL stream does not expose the records it writes.
+					tcpOut.write(frame, 0, length);
+					return -1;
+				}
+			});
+			in = new DataInputStream(tcpSocket.getInputStream());
+		} else {
+			frameWriter = new TcpFrameWriter(engine);
+		}
 
 		final Version.Builder v = Version.newBuilder();
 		v.setVersion(Globals.PROTOCOL_VERSION);
@@ -486,6 +584,11 @@ public class MumbleConnection implements Runnable {
 			return;
 		}
 
+		if (engine != null) {
+			handleSelectorProtocol();
+			return;
+		}
+
 		// Spawn one thread for each socket to allow concurrent processing.
 		final MumbleSocketReader tcpReader = new TcpSocketReader(stateLock);
 		final MumbleSocketReader udpReader = new UdpSocketReader(stateLock);
@@ -515,6 +618,29 @@ public class MumbleConnection implements Runnable {
 		udpReader.stop();
 	}
 
+	/**
+	 * Runs the selector engine on the connection thread until it is stopped
+	 * or the connection is lost.
+	 */
+	private void handleSelectorProtocol() throws IOException {
+		try {
+			engine.run();
+		} catch (final IOException e) {
+			// If we are disconnecting, exception is expected.
+			if (!disconnecting) {
+				throw e;
+			}
+		}
+
+		synchronized (stateLock) {
+			if (!disconnecting) {
+				reportError("Connection lost", null);
+				disconnecting = true;
+				connectionHost.setConnectionState(MumbleConnectionHost.STATE_DISCONNECTED);
+			}
+		}
+	}
+
 	private boolean handleSendingException(final IOException e) {
 		// If we are already disconnecting, just ignore this.
 		if (disconnecting) {
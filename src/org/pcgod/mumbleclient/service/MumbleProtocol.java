@@ -9,7 +9,9 @@ import net.sf.mumble.MumbleProto.ChannelRemove;
 import net.sf.mumble.MumbleProto.ChannelState;
 import net.sf.mumble.MumbleProto.CodecVersion;
 import net.sf.mumble.MumbleProto.CryptSetup;
+import net.sf.mumble.MumbleProto.Ping;
 import net.sf.mumble.MumbleProto.Reject;
+import net.sf.mumble.MumbleProto.ServerConfig;
 import net.sf.mumble.MumbleProto.ServerSync;
 import net.sf.mumble.MumbleProto.TextMessage;
 import net.sf.mumble.MumbleProto.UserRemove;
@@ -51,10 +53,11 @@ public class MumbleProtocol {
 	 * NOTE: This is the time when the last successfully received ping was SENT
 	 * by the client.
 	 *
-	 * 6000 gives 1 second reply-time as the ping interval is 5000 seconds
-	 * currently.
+	 * The window is the ping interval and the time the reply may take. The
+	 * reply time follows the measured UDP round trip times, this is the
+	 * longest window.
 	 */
-	public static final int UDP_PING_TRESHOLD = 6000;
+	public static final int UDP_PING_TRESHOLD = 2 * PingThread.PING_INTERVAL;
 
 	private static final MessageType[] MT_CONSTANTS = MessageType.class.getEnumConstants();
 
@@ -74,6 +77,12 @@ public class MumbleProtocol {
 	private final MumbleProtocolHost host;
 	private final MumbleConnection conn;
 
+	/**
+	 * Stream reused for parsing every voice packet. Guarded by itself as voice
+	 * may arrive both from the UDP socket and tunneled through TCP.
+	 */
+	private final PacketDataStream voiceStream = new PacketDataStream(new byte[0]);
+
 	private boolean stopped = false;
 
 	public MumbleProtocol(
@@ -89,6 +98,15 @@ public class MumbleProtocol {
 		this.host.setSynchronized(false);
 	}
 
+	/**
+	 * @return Latency of the audio output buffer in milliseconds, 0 if the
+	 *         audio output isn't running.
+	 */
+	public int getOutputLatency() {
+		final AudioOutput output = ao;
+		return output == null ? 0 : output.getOutputLatency();
+	}
+
 	public final void joinChannel(final int channelId) {
 		final UserState.Builder us = UserState.newBuilder();
 		us.setSession(currentUser.session);
@@ -117,7 +135,11 @@ public class MumbleProtocol {
 			processUdp(buffer, buffer.length);
 			break;
 		case Ping:
-			// ignore
+			final Ping pingReply = Ping.parseFrom(buffer);
+			if (pingReply.hasTimestamp()) {
+				conn.getLinkStats().addTcpPing(
+					(int) (System.currentTimeMillis() - pingReply.getTimestamp()));
+			}
 			break;
 		case CodecVersion:
 			final boolean oldCanSpeak = canSpeak;
@@ -158,8 +180,17 @@ public class MumbleProtocol {
 			currentUser.isCurrent = true;
 			currentChannel = currentUser.getChannel();
 
-			pingThread = new Thread(new PingThread(conn), "Ping");
-			pingThread.start();
+			if (ss.hasMaxBandwidth()) {
+				conn.getLinkStats().setMaxBandwidth(ss.getMaxBandwidth());
+			}
+
+			final PingThread ping = new PingThread(conn);
+			if (conn.usesSelectorEngine()) {
+				conn.schedulePing(ping);
+			} else {
+				pingThread = new Thread(ping, "Ping");
+				pingThread.start();
+			}
 			Globals.logDebug(this, ">>> " + t);
 
 			ao = new AudioOutput(ctx, audioHost);
@@ -175,6 +206,12 @@ public class MumbleProtocol {
 			host.currentChannelChanged();
 			host.currentUserUpdated();
 			break;
+		case ServerConfig:
+			final ServerConfig sc = ServerConfig.parseFrom(buffer);
+			if (sc.hasMaxBandwidth()) {
+				conn.getLinkStats().setMaxBandwidth(sc.getMaxBandwidth());
+			}
+			break;
 		case ChannelState:
 			final ChannelState cs = ChannelState.parseFrom(buffer);
 			channel = findChannel(cs.getChannelId());
@@ -291,7 +328,15 @@ public class MumbleProtocol {
 		case UserRemove:
 			final UserRemove ur = UserRemove.parseFrom(buffer);
 			user = findUser(ur.getSession());
-			users.remove(user.session);
+
+			// Voice packets are queued under the voiceStream lock, so no
+			// frames reach the user's audio state once it's removed.
+			synchronized (voiceStream) {
+				users.remove(user.session);
+				if (ao != null) {
+					ao.removeUser(user);
+				}
+			}
 
 			// Remove the user from the channel as well.
 			user.getChannel().userCount--;
@@ -333,24 +378,38 @@ public class MumbleProtocol {
 	}
 
 	public void processUdp(final byte[] buffer, final int length) {
+		processUdp(buffer, 0, length);
+	}
+
+	/**
+	 * Processes a decrypted UDP packet that starts at the given offset in the
+	 * buffer. The buffer isn't referenced after the call returns so the
+	 * caller may reuse it.
+	 */
+	public void processUdp(final byte[] buffer, final int offset, final int length) {
 		if (stopped) {
 			return;
 		}
 
-		final int type = buffer[0] >> 5 & 0x7;
+		final int type = buffer[offset] >> 5 & 0x7;
 		if (type == UDPMESSAGETYPE_UDPPING) {
-			final long timestamp = ((long) (buffer[1] & 0xFF) << 56) |
-								   ((long) (buffer[2] & 0xFF) << 48) |
-								   ((long) (buffer[3] & 0xFF) << 40) |
-								   ((long) (buffer[4] & 0xFF) << 32) |
-								   ((long) (buffer[5] & 0xFF) << 24) |
-								   ((long) (buffer[6] & 0xFF) << 16) |
-								   ((long) (buffer[7] & 0xFF) << 8) |
-								   ((buffer[8] & 0xFF));
-
-			conn.refreshUdpLimit(timestamp + UDP_PING_TRESHOLD);
+			final long timestamp = ((long) (buffer[offset + 1] & 0xFF) << 56) |
+								   ((long) (buffer[offset + 2] & 0xFF) << 48) |
+								   ((long) (buffer[offset + 3] & 0xFF) << 40) |
+								   ((long) (buffer[offset + 4] & 0xFF) << 32) |
+								   ((long) (buffer[offset + 5] & 0xFF) << 24) |
+								   ((long) (buffer[offset + 6] & 0xFF) << 16) |
+								   ((long) (buffer[offset + 7] & 0xFF) << 8) |
+								   ((buffer[offset + 8] & 0xFF));
+
+			final LinkStats linkStats = conn.getLinkStats();
+			linkStats.addUdpPing((int) (System.currentTimeMillis() - timestamp));
+			final int allowance = linkStats.getUdpReplyAllowance(
+				UDP_PING_TRESHOLD - PingThread.PING_INTERVAL);
+			conn.refreshUdpLimit(timestamp + PingThread.PING_INTERVAL +
+								 allowance);
 		} else {
-			processVoicePacket(buffer);
+			processVoicePacket(buffer, offset, length);
 		}
 	}
 
@@ -399,9 +458,12 @@ public class MumbleProtocol {
 		host.messageReceived(msg);
 	}
 
-	private void processVoicePacket(final byte[] buffer) {
-		final int type = buffer[0] >> 5 & 0x7;
-		final int flags = buffer[0] & 0x1f;
+	private void processVoicePacket(
+		final byte[] buffer,
+		final int offset,
+		final int length) {
+		final int type = buffer[offset] >> 5 & 0x7;
+		final int flags = buffer[offset] & 0x1f;
 
 		// There is no speex support...
 		if (type != UDPMESSAGETYPE_UDPVOICECELTALPHA &&
@@ -414,24 +476,28 @@ public class MumbleProtocol {
 			return;
 		}
 
-		final PacketDataStream pds = new PacketDataStream(buffer);
-		// skip type / flags
-		pds.skip(1);
-		final long uiSession = pds.readLong();
-
-		final User u = findUser((int) uiSession);
-		if (u == null) {
-			Globals.logError(this, "User session " + uiSession + " not found!");
+		synchronized (voiceStream) {
+			final PacketDataStream pds = voiceStream;
+			pds.setBuffer(buffer, offset, length);
+			// skip type / flags
+			pds.skip(1);
+			final long uiSession = pds.readLong();
+
+			final User u = findUser((int) uiSession);
+			if (u == null) {
+				Globals.logError(this, "User session " + uiSession +
+									   " not found!");
+
+				// This might happen if user leaves while there are still UDP packets
+				// en route to the clients. In this case we should just ignore these
+				// packets.
+				return;
+			}
 
-			// This might happen if user leaves while there are still UDP packets
-			// en route to the clients. In this case we should just ignore these
-			// packets.
-			return;
+			// Rewind the packet. Otherwise consumers are confusing to implement.
+			pds.rewind();
+			ao.addFrameToBuffer(u, pds, flags);
 		}
-
-		// Rewind the packet. Otherwise consumers are confusing to implement.
-		pds.rewind();
-		ao.addFrameToBuffer(u, pds, flags);
 	}
 
 	private void stopThreads() {
@@ -13,6 +13,7 @@ import junit.framework.Assert;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.R;
+import org.pcgod.mumbleclient.Settings;
 import org.pcgod.mumbleclient.app.ChannelList;
 import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
 import org.pcgod.mumbleclient.service.audio.RecordThread;
@@ -290,6 +291,9 @@ public class MumbleService extends Service {
 					MumbleService.this.synced = synced;
 					if (synced) {
 						Globals.logInfo(this, "Synchronized");
+						if (canSpeak()) {
+							startRecorder();
+						}
 					} else {
 						Globals.logInfo(this, "Synchronization reset");
 					}
@@ -394,6 +398,7 @@ public class MumbleService extends Service {
 	private MumbleProtocol mProtocol;
 
 	private Thread mClientThread;
+	private RecordThread mRecorder;
 	private Thread mRecordThread;
 
 	Notification mNotification;;
@@ -439,6 +444,14 @@ public class MumbleService extends Service {
 		}
 	}
 
+	/**
+	 * @return Encoder bitrate in bits per second, 0 if not recording.
+	 */
+	public int getBitrate() {
+		final RecordThread recorder = mRecorder;
+		return recorder == null ? 0 : recorder.getBitrate();
+	}
+
 	public List<Channel> getChannelList() {
 		return Collections.unmodifiableList(channels);
 	}
@@ -464,12 +477,33 @@ public class MumbleService extends Service {
 		return mProtocol.currentUser;
 	}
 
+	/**
+	 * @return Frames sent in each voice packet, 0 if not recording.
+	 */
+	public int getFramesPerPacket() {
+		final RecordThread recorder = mRecorder;
+		return recorder == null ? 0 : recorder.getFramesPerPacket();
+	}
+
+	/**
+	 * @return Latency of the audio output buffer in milliseconds, 0 if not
+	 *         connected.
+	 */
+	public int getOutputLatency() {
+		final MumbleProtocol protocol = mProtocol;
+		return protocol == null ? 0 : protocol.getOutputLatency();
+	}
+
 	public String getError() {
 		final String r = errorString;
 		errorString = null;
 		return r;
 	}
 
+	public LinkStats getLinkStats() {
+		return mClient.getLinkStats();
+	}
+
 	public List<Message> getMessageList() {
 		return Collections.unmodifiableList(messages);
 	}
@@ -483,7 +517,7 @@ public class MumbleService extends Service {
 	}
 
 	public boolean isRecording() {
-		return (mRecordThread != null);
+		return mRecorder != null && mRecorder.isTransmitting();
 	}
 
 	public void joinChannel(final int channelId) {
@@ -555,18 +589,17 @@ public class MumbleService extends Service {
 
 	public void setRecording(final boolean state) {
 		if (mProtocol != null && mProtocol.currentUser != null &&
-			mRecordThread == null && state) {
+			!isRecording() && state) {
 			// start record
 			// TODO check initialized
-			mRecordThread = new Thread(new RecordThread(this), "record");
-			mRecordThread.start();
+			startRecorder();
+			mRecorder.setTransmitting(true);
 			mAudioHost.setTalkState(
 				mProtocol.currentUser,
 				AudioOutputHost.STATE_TALKING);
-		} else if (mRecordThread != null && !state) {
+		} else if (isRecording() && !state) {
 			// stop record
-			mRecordThread.interrupt();
-			mRecordThread = null;
+			mRecorder.setTransmitting(false);
 			mAudioHost.setTalkState(
 				mProtocol.currentUser,
 				AudioOutputHost.STATE_PASSIVE);
@@ -614,7 +647,8 @@ public class MumbleService extends Service {
 			host,
 			port,
 			username,
-			password);
+			password,
+			new Settings(this).isSelectorEngine());
 
 		mProtocol = new MumbleProtocol(
 			mProtocolHost,
@@ -645,6 +679,8 @@ public class MumbleService extends Service {
 		}
 
 		// Stop threads.
+		stopRecorder();
+
 		if (mProtocol != null) {
 			mProtocol.stop();
 			mProtocol = null;
@@ -703,6 +739,20 @@ public class MumbleService extends Service {
 		startForegroundCompat(1, mNotification);
 	}
 
+	/**
+	 * Starts the record thread if it isn't running. It is kept for the whole
+	 * connection so push to talk doesn't wait for the audio setup.
+	 */
+	void startRecorder() {
+		if (mRecorder != null) {
+			return;
+		}
+
+		mRecorder = new RecordThread(this);
+		mRecordThread = new Thread(mRecorder, "record");
+		mRecordThread.start();
+	}
+
 	/**
 	 * This is a wrapper around the new startForeground method, using the older
 	 * APIs if it is not available.
@@ -757,6 +807,23 @@ public class MumbleService extends Service {
 		setForeground(false);
 	}
 
+	void stopRecorder() {
+		if (mRecorder == null) {
+			return;
+		}
+
+		mRecorder.stop();
+		try {
+			mRecordThread.join();
+		} catch (final InterruptedException e) {
+			Globals.logWarn(this,
+				"Interrupted while waiting for record thread to end",
+				e);
+		}
+		mRecorder = null;
+		mRecordThread = null;
+	}
+
 	void updateConnectionState() {
 		final int oldState = serviceState;
 
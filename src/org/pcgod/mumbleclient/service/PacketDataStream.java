@@ -5,6 +5,7 @@ import java.util.Arrays;
 public class PacketDataStream {
 	private byte[] data;
 	private boolean ok;
+	private int start;
 	private int offset;
 	private int capacity;
 
@@ -25,8 +26,20 @@ public class PacketDataStream {
 		}
 	}
 
+	public final void append(final byte[] d, final int len) {
+		if (left() >= len) {
+			System.arraycopy(d, 0, data, offset, len);
+			offset += len;
+		} else {
+			final int l = left();
+			Arrays.fill(data, offset, offset + l, (byte) 0);
+			offset += l;
+			ok = false;
+		}
+	}
+
 	public final void append(final long v) {
-		if (offset < data.length) {
+		if (offset < capacity) {
 			data[offset] = (byte) v;
 			++offset;
 		} else {
@@ -35,7 +48,7 @@ public class PacketDataStream {
 	}
 
 	public final int capacity() {
-		return data.length;
+		return capacity - start;
 	}
 
 	public final boolean dataBlock(final byte[] buffer, final int len) {
@@ -148,18 +161,27 @@ public class PacketDataStream {
 	}
 
 	public final void rewind() {
-		offset = 0;
+		offset = start;
 	}
 
 	public void setBuffer(final byte[] d) {
+		setBuffer(d, 0, d.length);
+	}
+
+	/**
+	 * Points the stream at a region of the array. Allows reusing one stream
+	 * for packets that live inside larger receive buffers.
+	 */
+	public void setBuffer(final byte[] d, final int off, final int len) {
 		data = d;
 		ok = true;
-		offset = 0;
-		capacity = d.length;
+		start = off;
+		offset = off;
+		capacity = off + len;
 	}
 
 	public final int size() {
-		return offset;
+		return offset - start;
 	}
 
 	public final void skip(final int len) {
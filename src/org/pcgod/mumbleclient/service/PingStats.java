@@ -0,0 +1,56 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Running mean and variance of the ping round trip times of one transport.
+ *
+ * Uses Welford's method, so nothing but the count, the mean and the sum of
+ * squared differences is kept and the variance doesn't lose precision when
+ * the times are large compared to their spread. These are the numbers the
+ * server expects in the Ping message.
+ *
+ * Thread safe.
+ */
+public class PingStats {
+	private int count;
+	private double mean;
+	private double squares;
+
+	/**
+	 * @param rtt
+	 *            Round trip time in ms.
+	 */
+	public synchronized void add(final double rtt) {
+		count++;
+		final double delta = rtt - mean;
+		mean += delta / count;
+		squares += delta * (rtt - mean);
+	}
+
+	/**
+	 * @return Number of replies received.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Average round trip time in ms.
+	 */
+	public synchronized float getMean() {
+		return (float) mean;
+	}
+
+	/**
+	 * @return Standard deviation of the round trip time in ms.
+	 */
+	public synchronized float getStandardDeviation() {
+		return (float) Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return Variance of the round trip time in ms squared.
+	 */
+	public synchronized float getVariance() {
+		return count == 0 ? 0 : (float) (squares / count);
+	}
+}
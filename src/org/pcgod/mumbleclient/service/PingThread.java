@@ -3,6 +3,8 @@ package org.pcgod.mumbleclient.service;
 import net.sf.mumble.MumbleProto.Ping;
 
 class PingThread implements Runnable {
+	static final int PING_INTERVAL = 5000;
+
 	private boolean running = true;
 	private final MumbleConnection mc;
 	private final byte[] udpBuffer = new byte[9];
@@ -18,29 +20,52 @@ class PingThread implements Runnable {
 	public final void run() {
 		while (running && mc.isConnectionAlive()) {
 			try {
-				final long timestamp = System.currentTimeMillis();
-
-				// TCP
-				final Ping.Builder p = Ping.newBuilder();
-				p.setTimestamp(timestamp);
-				mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
-
-				// UDP
-				udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
-				udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
-				udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
-				udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
-				udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
-				udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
-				udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
-				udpBuffer[8] = (byte) ((timestamp) & 0xFF);
-
-				mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
-				Thread.sleep(5000);
+				ping();
+				Thread.sleep(PING_INTERVAL);
 			} catch (final InterruptedException e) {
 				e.printStackTrace();
 				running = false;
 			}
 		}
 	}
+
+	/**
+	 * Sends a single TCP and UDP ping to the server.
+	 */
+	final void ping() {
+		final long timestamp = System.currentTimeMillis();
+
+		// TCP, with the statistics the server shows in the user info.
+		final LinkStats stats = mc.getLinkStats();
+		final PingStats udp = stats.getUdpPings();
+		final PingStats tcp = stats.getTcpPings();
+		final Ping.Builder p = Ping.newBuilder();
+		p.setTimestamp(timestamp);
+		p.setGood(stats.getGood());
+		p.setLate(stats.getLate());
+		p.setLost(stats.getLost());
+		synchronized (udp) {
+			p.setUdpPackets(udp.getCount());
+			p.setUdpPingAvg(udp.getMean());
+			p.setUdpPingVar(udp.getVariance());
+		}
+		synchronized (tcp) {
+			p.setTcpPackets(tcp.getCount());
+			p.setTcpPingAvg(tcp.getMean());
+			p.setTcpPingVar(tcp.getVariance());
+		}
+		mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
+
+		// UDP
+		udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
+		udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
+		udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
+		udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
+		udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
+		udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
+		udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
+		udpBuffer[8] = (byte) ((timestamp) & 0xFF);
+
+		mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
+	}
 }
@@ -0,0 +1,499 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+
+import org.pcgod.mumbleclient.Globals;
+
+/**
+ * Single threaded transport for MumbleConnection.
+ *
+ * Replaces the TCP and UDP reader threads and the ping thread with one
+ * selector loop that runs on the connection thread. TLS is handled with an
+ * SSLEngine on top of a non-blocking SocketChannel and UDP goes through a
+ * connected DatagramChannel registered with the same selector.
+ *
+ * Sending is allowed from any thread. TCP data that can't be written right
+ * away stays in the outgoing network buffer and is flushed by the loop once
+ * the channel becomes writable again.
+ */
+class SelectorEngine implements TcpFrameWriter.FrameSink {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * Grows a buffer that is in fill mode while keeping its contents.
+	 */
+	private static ByteBuffer enlarge(final ByteBuffer buffer, final int extra) {
+		final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + extra);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	private final InetAddress hostAddress;
+	private final int port;
+	private final MumbleProtocol protocol;
+	private final CryptState cryptState;
+
+	private Selector selector;
+	private SocketChannel tcpChannel;
+	private DatagramChannel udpChannel;
+	private SelectionKey tcpKey;
+	private SSLEngine sslEngine;
+
+	/** TLS records read from the socket. Only used by the loop thread. */
+	private ByteBuffer netIn;
+	/** Decrypted TCP stream waiting to be framed. Only used by the loop thread. */
+	private ByteBuffer appIn;
+	/** TLS records waiting to be written to the socket. Guarded by writeLock. */
+	private ByteBuffer netOut;
+	private final ByteBuffer udpIn = ByteBuffer.allocate(MumbleConnection.UDP_BUFFER_SIZE);
+	/** Wrapper for the caller's UDP buffer, reused while the array stays the same. */
+	private ByteBuffer udpOut;
+	private final Object writeLock = new Object();
+	private byte[] msg = null;
+
+	private volatile boolean running = true;
+	private volatile boolean writePending = false;
+	private volatile PingThread pingTask;
+	private long nextPing;
+
+	public SelectorEngine(
+		final InetAddress hostAddress,
+		final int port,
+		final MumbleProtocol protocol,
+		final CryptState cryptState) {
+		this.hostAddress = hostAddress;
+		this.port = port;
+		this.protocol = protocol;
+		this.cryptState = cryptState;
+	}
+
+	/**
+	 * Closes the channels and the selector. Should be called once the loop
+	 * has returned.
+	 */
+	public void close() {
+		try {
+			if (tcpChannel != null) {
+				tcpChannel.close();
+			}
+			if (udpChannel != null) {
+				udpChannel.close();
+			}
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (final IOException e) {
+			Globals.logError(this, "IO error while closing the channels", e);
+		}
+	}
+
+	/**
+	 * Opens the channels and completes the TLS handshake. The handshake is
+	 * done in blocking mode before the channels are registered with the
+	 * selector, the same way the socket based transport does it.
+	 */
+	public void connect() throws IOException, NoSuchAlgorithmException,
+		KeyManagementException {
+		final SSLContext ctx_ = SSLContext.getInstance("TLS");
+		ctx_.init(null, new TrustManager[] { new LocalSSLTrustManager() }, null);
+		sslEngine = ctx_.createSSLEngine(hostAddress.getHostAddress(), port);
+		sslEngine.setUseClientMode(true);
+		sslEngine.setEnabledProtocols(new String[] { "TLSv1" });
+
+		final int packetSize = sslEngine.getSession().getPacketBufferSize();
+		final int applicationSize = sslEngine.getSession().getApplicationBufferSize();
+		netIn = ByteBuffer.allocate(packetSize);
+		netOut = ByteBuffer.allocate(packetSize);
+		appIn = ByteBuffer.allocate(applicationSize);
+
+		selector = Selector.open();
+		tcpChannel = SocketChannel.open(new InetSocketAddress(hostAddress, port));
+		handshake();
+
+		Globals.logInfo(this, "TCP/SSL channel opened");
+
+		udpChannel = DatagramChannel.open();
+		udpChannel.connect(new InetSocketAddress(hostAddress, port));
+
+		Globals.logInfo(this, "UDP channel opened");
+
+		tcpChannel.configureBlocking(false);
+		udpChannel.configureBlocking(false);
+		tcpKey = tcpChannel.register(selector, SelectionKey.OP_READ);
+		udpChannel.register(selector, SelectionKey.OP_READ);
+	}
+
+	public boolean isOpen() {
+		return tcpChannel != null && tcpChannel.isOpen() &&
+			   tcpChannel.isConnected() && udpChannel != null &&
+			   udpChannel.isOpen();
+	}
+
+	/**
+	 * Runs the event loop until stop() is called or the connection fails.
+	 *
+	 * @throws IOException
+	 *             If the connection was lost.
+	 */
+	public void run() throws IOException {
+		while (running) {
+			if (writePending) {
+				tcpKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+
+			selector.select(getSelectTimeout());
+			if (!running) {
+				break;
+			}
+
+			final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+			while (i.hasNext()) {
+				final SelectionKey key = i.next();
+				i.remove();
+
+				if (!key.isValid()) {
+					continue;
+				}
+
+				if (key == tcpKey) {
+					if (key.isWritable()) {
+						flushPending();
+					}
+					if (key.isReadable()) {
+						readTcp();
+					}
+				} else {
+					readUdp();
+				}
+			}
+
+			runPing();
+		}
+	}
+
+	/**
+	 * Hands the periodic ping over to the event loop. The first ping is sent
+	 * immediately.
+	 */
+	public void schedulePing(final PingThread ping) {
+		nextPing = 0;
+		pingTask = ping;
+		selector.wakeup();
+	}
+
+	/**
+	 * Writes an already encrypted UDP datagram. If the socket buffer is full
+	 * or the server port is unreachable the datagram is dropped which is fine
+	 * for voice data.
+	 *
+	 * Callers must not send concurrently. MumbleConnection serializes the
+	 * calls with its UDP send lock.
+	 */
+	public void sendUdp(final byte[] buffer, final int length)
+		throws IOException {
+		if (udpOut == null || udpOut.array() != buffer) {
+			udpOut = ByteBuffer.wrap(buffer);
+		}
+
+		udpOut.clear();
+		udpOut.limit(length);
+		try {
+			udpChannel.write(udpOut);
+		} catch (final PortUnreachableException e) {
+			// The connected channel reports an earlier ICMP error. Like the
+			// unconnected socket, drop the datagram and let the ping decide
+			// when to fall back to the TCP tunnel.
+		}
+	}
+
+	public void stop() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Wraps a complete TCP frame and writes it out. May be called from any
+	 * thread.
+	 */
+	@Override
+	public int writeFrame(final byte[] frame, final int length)
+		throws IOException {
+		synchronized (writeLock) {
+			final int records = wrap(ByteBuffer.wrap(frame, 0, length));
+			if (!flush()) {
+				writePending = true;
+				selector.wakeup();
+			}
+			return records;
+		}
+	}
+
+	/**
+	 * Processes the complete Mumble frames in the decrypted TCP stream.
+	 *
+	 * @return True if at least one frame was consumed.
+	 */
+	private boolean drainFrames() throws IOException {
+		boolean consumed = false;
+		appIn.flip();
+		try {
+			while (appIn.remaining() >= TcpFrameWriter.HEADER_SIZE) {
+				final int start = appIn.position();
+				final short type = appIn.getShort(start);
+				final int length = appIn.getInt(start + 2);
+				if (appIn.remaining() < TcpFrameWriter.HEADER_SIZE + length) {
+					break;
+				}
+
+				if (msg == null || msg.length != length) {
+					msg = new byte[length];
+				}
+				appIn.position(start + TcpFrameWriter.HEADER_SIZE);
+				appIn.get(msg);
+				consumed = true;
+
+				protocol.processTcp(type, msg);
+			}
+		} finally {
+			appIn.compact();
+		}
+		return consumed;
+	}
+
+	private boolean flush() throws IOException {
+		netOut.flip();
+		try {
+			while (netOut.hasRemaining()) {
+				if (tcpChannel.write(netOut) == 0) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	private void flushPending() throws IOException {
+		synchronized (writeLock) {
+			if (flush()) {
+				writePending = false;
+				tcpKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	private long getSelectTimeout() {
+		if (pingTask == null) {
+			return 0;
+		}
+		return Math.max(1, nextPing - System.currentTimeMillis());
+	}
+
+	private void handleHandshakeStatus(final HandshakeStatus status)
+		throws IOException {
+		if (status == HandshakeStatus.NEED_TASK) {
+			runDelegatedTasks();
+		} else if (status == HandshakeStatus.NEED_WRAP) {
+			synchronized (writeLock) {
+				wrap(EMPTY);
+				if (!flush()) {
+					writePending = true;
+				}
+			}
+		}
+	}
+
+	private void handshake() throws IOException {
+		sslEngine.beginHandshake();
+
+		HandshakeStatus status = sslEngine.getHandshakeStatus();
+		while (status != HandshakeStatus.FINISHED &&
+			   status != HandshakeStatus.NOT_HANDSHAKING) {
+			switch (status) {
+			case NEED_TASK:
+				runDelegatedTasks();
+				break;
+			case NEED_WRAP:
+				synchronized (writeLock) {
+					wrap(EMPTY);
+					flush();
+				}
+				break;
+			case NEED_UNWRAP:
+				netIn.flip();
+				final SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+				netIn.compact();
+
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					if (!netIn.hasRemaining()) {
+						netIn = enlarge(
+							netIn,
+							sslEngine.getSession().getPacketBufferSize());
+					}
+					if (tcpChannel.read(netIn) < 0) {
+						throw new EOFException(
+							"Connection closed during TLS handshake");
+					}
+					break;
+				case BUFFER_OVERFLOW:
+					appIn = enlarge(
+						appIn,
+						sslEngine.getSession().getApplicationBufferSize());
+					break;
+				case CLOSED:
+					throw new EOFException("Connection closed during TLS handshake");
+				}
+				break;
+			}
+			status = sslEngine.getHandshakeStatus();
+		}
+	}
+
+	private void readTcp() throws IOException {
+		if (tcpChannel.read(netIn) < 0) {
+			throw new EOFException("Server closed the connection");
+		}
+
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				final SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					// Make room by processing the complete frames first and
+					// only grow the buffer if a single frame doesn't fit.
+					if (!drainFrames()) {
+						appIn = enlarge(
+							appIn,
+							sslEngine.getSession().getApplicationBufferSize());
+					}
+					continue;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					break;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new EOFException("Server closed the TLS session");
+				}
+
+				handleHandshakeStatus(result.getHandshakeStatus());
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					break;
+				}
+			}
+		} finally {
+			netIn.compact();
+		}
+
+		if (!netIn.hasRemaining()) {
+			netIn = enlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+		}
+
+		drainFrames();
+	}
+
+	private void readUdp() throws IOException {
+		while (true) {
+			udpIn.clear();
+
+			final int read;
+			try {
+				read = udpChannel.read(udpIn);
+			} catch (final PortUnreachableException e) {
+				// UDP is blocked on the way to the server. Voice falls back to
+				// the TCP tunnel so this isn't a reason to disconnect.
+				return;
+			}
+
+			if (read <= 0) {
+				return;
+			}
+
+			// Decrypt in place, see MumbleConnection.UdpSocketReader.
+			final byte[] buffer = udpIn.array();
+			final int length = cryptState.decrypt(
+				buffer,
+				read,
+				buffer,
+				CryptState.HEADER_SIZE);
+
+			// Decrypt might fail if the buffer was total garbage.
+			if (length < 0) {
+				continue;
+			}
+
+			protocol.processUdp(buffer, CryptState.HEADER_SIZE, length);
+		}
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = sslEngine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private void runPing() {
+		final PingThread ping = pingTask;
+		if (ping == null) {
+			return;
+		}
+
+		final long now = System.currentTimeMillis();
+		if (now >= nextPing) {
+			nextPing = now + PingThread.PING_INTERVAL;
+			ping.ping();
+		}
+	}
+
+	/**
+	 * Wraps the source buffer into netOut. Caller must hold writeLock.
+	 *
+	 * @return Number of TLS records produced.
+	 */
+	private int wrap(final ByteBuffer src) throws SSLException {
+		int records = 0;
+		while (true) {
+			final SSLEngineResult result = sslEngine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = enlarge(
+					netOut,
+					sslEngine.getSession().getPacketBufferSize());
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS session closed");
+			}
+			if (result.bytesProduced() > 0) {
+				records++;
+			}
+			if (!src.hasRemaining()) {
+				return records;
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Builds Mumble TCP frames in one reusable buffer.
+ *
+ * The 6 byte header and the payload are written to the TLS layer with a single
+ * call. Writing them separately to the SSL stream results in a TLS record and
+ * a syscall for the type, the length and every chunk of the payload.
+ *
+ * The writer also counts the TLS records the sink reports for each frame.
+ * Only sinks that see the records, such as the selector engine's SSLEngine,
+ * report them. Frames written to an SSL stream are left out of the counts.
+ */
+class TcpFrameWriter {
+	/**
+	 * Destination for complete frames.
+	 */
+	public interface FrameSink {
+		/**
+		 * @return Number of TLS records the frame was sent in or -1 if the
+		 *         sink cannot tell.
+		 */
+		public int writeFrame(byte[] frame, int length) throws IOException;
+	}
+
+	public static final int HEADER_SIZE = 6;
+	private static final int INITIAL_SIZE = 1024;
+
+	private final FrameSink sink;
+	private byte[] frame = new byte[INITIAL_SIZE];
+
+	private long countedFrames;
+	private long records;
+
+	public TcpFrameWriter(final FrameSink sink) {
+		this.sink = sink;
+	}
+
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * @return Number of frames the sink reported the TLS records for.
+	 */
+	public synchronized long getCountedFrameCount() {
+		return countedFrames;
+	}
+
+	/**
+	 * @return Average TLS records per frame since the writer was created or
+	 *         0 if the sink does not report records.
+	 */
+	public synchronized float getRecordsPerFrame() {
+		return countedFrames == 0 ? 0 : (float) records / countedFrames;
+	}
+
+	/**
+	 * Writes raw payload, such as a tunneled UDP packet, in one frame.
+	 */
+	public synchronized void write(
+		final short type,
+		final byte[] payload,
+		final int length) throws IOException {
+		prepare(type, length);
+		System.arraycopy(payload, 0, frame, HEADER_SIZE, length);
+		send(HEADER_SIZE + length);
+	}
+
+	/**
+	 * Serializes the message directly behind the header and writes both in
+	 * one frame.
+	 */
+	public synchronized void write(final short type, final MessageLite m)
+		throws IOException {
+		final int length = m.getSerializedSize();
+		prepare(type, length);
+
+		final CodedOutputStream cos = CodedOutputStream.newInstance(
+			frame,
+			HEADER_SIZE,
+			length);
+		m.writeTo(cos);
+		cos.checkNoSpaceLeft();
+
+		send(HEADER_SIZE + length);
+	}
+
+	private void prepare(final short type, final int length) {
+		if (frame.length < HEADER_SIZE + length) {
+			frame = new byte[Math.max(HEADER_SIZE + length, frame.length * 2)];
+		}
+
+		frame[0] = (byte) ((type >> 8) & 0xFF);
+		frame[1] = (byte) (type & 0xFF);
+		frame[2] = (byte) ((length >> 24) & 0xFF);
+		frame[3] = (byte) ((length >> 16) & 0xFF);
+		frame[4] = (byte) ((length >> 8) & 0xFF);
+		frame[5] = (byte) (length & 0xFF);
+	}
+
+	private void send(final int length) throws IOException {
+		final int written = sink.writeFrame(frame, length);
+
+		if (written >= 0) {
+			countedFrames++;
+			records += written;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.pcgod.mumbleclient.jni.NativeBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+/**
+ * Capture stage of the record pipeline.
+ *
+ * Only drains the AudioRecord into a CaptureRing and wakes the consumer, the
+ * encoding happens in RecordThread. A slow encoder then fills the ring
+ * instead of letting the AudioRecord overrun, and a frame is only lost when
+ * the whole ring is full.
+ */
+class AudioCapture implements Runnable {
+	private final int sampleRate;
+	private final int frameBytes;
+	private final CaptureRing ring;
+
+	/** Frames are read here and dropped when the ring is full */
+	private final NativeBuffer overflowSlot;
+
+	private volatile boolean shouldRun;
+	private volatile boolean active;
+	private volatile Thread captureThread;
+	private volatile Thread consumer;
+
+	private volatile int overruns;
+	private volatile int underruns;
+
+	public AudioCapture(
+		final int sampleRate,
+		final int frameSize,
+		final CaptureRing ring) {
+		this.sampleRate = sampleRate;
+		this.frameBytes = frameSize * 2;
+		this.ring = ring;
+		overflowSlot = new NativeBuffer(frameBytes);
+
+		// Set here so stop() before the thread gets to run() isn't lost.
+		shouldRun = true;
+	}
+
+	/**
+	 * @return Frames dropped because the ring was full.
+	 */
+	public int getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return Frames the AudioRecord returned short. The rest of the frame is
+	 *         silence.
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	@Override
+	public void run() {
+		captureThread = Thread.currentThread();
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+		AudioRecord ar = null;
+		try {
+			ar = new AudioRecord(
+				MediaRecorder.AudioSource.MIC,
+				sampleRate,
+				AudioFormat.CHANNEL_CONFIGURATION_MONO,
+				AudioFormat.ENCODING_PCM_16BIT,
+				64 * 1024);
+
+			if (ar.getState() != AudioRecord.STATE_INITIALIZED) {
+				return;
+			}
+
+			captureLoop(ar);
+		} finally {
+			if (ar != null) {
+				ar.release();
+			}
+		}
+	}
+
+	/**
+	 * Starts or stops the recording. The AudioRecord is stopped while
+	 * inactive.
+	 */
+	public void setActive(final boolean active) {
+		if (this.active == active) {
+			return;
+		}
+		this.active = active;
+		LockSupport.unpark(captureThread);
+	}
+
+	/**
+	 * @param consumer
+	 *            Thread woken after each published frame.
+	 */
+	public void setConsumer(final Thread consumer) {
+		this.consumer = consumer;
+	}
+
+	public void stop() {
+		shouldRun = false;
+		LockSupport.unpark(captureThread);
+	}
+
+	private void captureLoop(final AudioRecord ar) {
+		boolean recording = false;
+
+		while (shouldRun) {
+			if (!active) {
+				if (recording) {
+					ar.stop();
+					recording = false;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+
+			if (!recording) {
+				ar.startRecording();
+				recording = true;
+			}
+
+			NativeBuffer slot = ring.claim();
+			if (slot == null) {
+				overruns++;
+				slot = overflowSlot;
+			}
+
+			final int read = ar.read(slot.buffer(), frameBytes);
+			if (read == AudioRecord.ERROR_BAD_VALUE ||
+				read == AudioRecord.ERROR_INVALID_OPERATION) {
+				throw new RuntimeException("" + read);
+			}
+
+			if (read < frameBytes) {
+				underruns++;
+				for (int i = Math.max(read, 0); i < frameBytes; i++) {
+					slot.buffer().put(i, (byte) 0);
+				}
+			}
+
+			if (slot != overflowSlot) {
+				ring.publish();
+				LockSupport.unpark(consumer);
+			}
+		}
+
+		if (recording) {
+			ar.stop();
+		}
+	}
+}
@@ -1,89 +1,118 @@
 package org.pcgod.mumbleclient.service.audio;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.Settings;
+import org.pcgod.mumbleclient.jni.NativeHandle;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.PacketDataStream;
 import org.pcgod.mumbleclient.service.audio.AudioUser.PacketReadyHandler;
 import org.pcgod.mumbleclient.service.model.User;
 
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioTrack;
 
 /**
  * Audio output thread.
  * Handles the playback of UDP packets added with addFrameToBuffer.
  *
+ * The network thread and the audio thread share no lock. An AudioUser that
+ * gets its first frame is put on the readyUsers queue and the audio thread is
+ * unparked. The audio thread keeps its own list of users in the mix and
+ * drops users whose frames have run out.
+ *
+ * The frames are decoded ahead by the DecodeStage, so the audio thread only
+ * sums the decoded PCM. With batch mixing enabled the BatchMixer decodes and
+ * sums all users' frames in one native call instead. The AudioTrack and its
+ * buffer size are managed by the OutputLatencyManager.
+ *
+ * Users that leave the server are handed to the audio thread, which frees
+ * their native state once they are out of the mix and not decoding.
+ *
  * @author pcgod, Rantanen
  */
 public class AudioOutput implements Runnable {
 	private final PacketReadyHandler packetReadyHandler = new PacketReadyHandler() {
 		@Override
 		public void packetReady(final AudioUser user) {
-			synchronized (userPackets) {
-				if (!userPackets.containsKey(user.getUser())) {
-					host.setTalkState(
-						user.getUser(),
-						AudioOutputHost.STATE_TALKING);
-					userPackets.put(user.getUser(), user);
-					userPackets.notify();
-				}
-			}
+			host.setTalkState(user.getUser(), AudioOutputHost.STATE_TALKING);
+			readyUsers.add(user);
+			LockSupport.unpark(audioThread);
 		}
 	};
 
 	private final static int standbyTreshold = 5000;
+
+	/**
+	 * Level above which the soft limiter starts compressing, about -2.5 dBFS.
+	 */
+	private final static int LIMITER_KNEE = 24576;
 	private final Settings settings;
 
-	private boolean shouldRun;
-	private final AudioTrack at;
-	private final int bufferSize;
-	private final int minBufferSize;
+	private volatile boolean shouldRun;
+	private volatile Thread audioThread;
+	private final OutputLatencyManager output;
 
-	final Map<User, AudioUser> userPackets = new HashMap<User, AudioUser>();
+	/**
+	 * Users that got frames while out of the mix. Filled by the network
+	 * thread, drained by the audio thread.
+	 */
+	private final Queue<AudioUser> readyUsers = new ConcurrentLinkedQueue<AudioUser>();
+
+	/**
+	 * Users in the mix. Only for use in the audio thread.
+	 */
+	private final List<AudioUser> activeUsers = new ArrayList<AudioUser>();
 	private final Map<User, AudioUser> users = new HashMap<User, AudioUser>();
 
 	/**
-	 * Buffer used to hold temporary float values while mixing multiple
+	 * Users that left the server. Filled by the network thread, drained by
+	 * the audio thread.
+	 */
+	private final Queue<AudioUser> removedUsers = new ConcurrentLinkedQueue<AudioUser>();
+
+	/**
+	 * Removed users waiting for their last decode to finish. Only for use in
+	 * the audio thread.
+	 */
+	private final List<AudioUser> releasingUsers = new ArrayList<AudioUser>();
+
+	/**
+	 * Buffer used to hold the sum of the inputs while mixing multiple
 	 * inputs. Only for use in the audio thread.
 	 */
-	final float[] tempMix = new float[MumbleProtocol.FRAME_SIZE];
+	private final int[] tempMix = new int[MumbleProtocol.FRAME_SIZE];
+
+	/**
+	 * Users with a frame in the current mix. Only for use in the audio thread.
+	 */
+	private AudioUser[] mixUsers = new AudioUser[8];
+
+	private final boolean softLimiter;
+
+	/**
+	 * Decodes and mixes in native code if batch mixing is enabled, null
+	 * otherwise.
+	 */
+	private final BatchMixer batchMixer;
 
 	private final AudioOutputHost host;
+	private final DecodeStage decodeStage = new DecodeStage();
 
 	public AudioOutput(final Context ctx, final AudioOutputHost host) {
 		this.settings = new Settings(ctx);
 		this.host = host;
+		this.softLimiter = settings.isSoftLimiter();
+		this.batchMixer = settings.isBatchMixing() ? new BatchMixer() : null;
 
-		minBufferSize = AudioTrack.getMinBufferSize(
-			MumbleProtocol.SAMPLE_RATE,
-			AudioFormat.CHANNEL_CONFIGURATION_MONO,
-			AudioFormat.ENCODING_PCM_16BIT);
-
-		// Double the buffer size to reduce stuttering.
-		final int desiredBufferSize = minBufferSize * 2;
-
-		// Resolve the minimum frame count that fills the minBuffer requirement.
-		final int frameCount = (int) Math.ceil((double) desiredBufferSize /
-											   MumbleProtocol.FRAME_SIZE);
-
-		bufferSize = frameCount * MumbleProtocol.FRAME_SIZE;
-
-		at = new AudioTrack(
-			settings.getAudioStream(),
-			MumbleProtocol.SAMPLE_RATE,
-			AudioFormat.CHANNEL_CONFIGURATION_MONO,
-			AudioFormat.ENCODING_PCM_16BIT,
-			bufferSize,
-			AudioTrack.MODE_STREAM);
+		output = new OutputLatencyManager(settings.getAudioStream());
 
 		// Set this here so this.start(); this.shouldRun = false; doesn't
 		// result in run() setting shouldRun to true afterwards and continuing
@@ -95,20 +124,55 @@ public class AudioOutput implements Runnable {
 		final User u,
 		final PacketDataStream pds,
 		final int flags) {
-		AudioUser user = users.get(u);
+		// The lock is only contended when the output stops and releases
+		// the users.
+		synchronized (users) {
+			if (!shouldRun) {
+				return;
+			}
+
+			AudioUser user = users.get(u);
+			if (user == null) {
+				user = new AudioUser(u, settings.getJitterBuffer(), decodeStage);
+				users.put(u, user);
+				// Don't add the user to readyUsers yet. The queue should
+				// have only users with ready frames. Voice arrives from the
+				// TCP thread, the UDP reader and the selector loop, but all
+				// callers hold the MumbleProtocol.voiceStream lock. So no new
+				// AudioUser is created while a previous one is still decoding.
+			}
+
+			user.addFrameToBuffer(pds, packetReadyHandler);
+		}
+	}
+
+	/**
+	 * @return Latency of the output buffer in milliseconds.
+	 */
+	public int getOutputLatency() {
+		return output.getLatency();
+	}
+
+	/**
+	 * Frees the audio state of a user who left the server. The caller must
+	 * make sure no frames for the user are added after this.
+	 */
+	public void removeUser(final User u) {
+		final AudioUser user;
+		synchronized (users) {
+			user = users.remove(u);
+		}
 		if (user == null) {
-			user = new AudioUser(u, settings.isJitterBuffer());
-			users.put(u, user);
-			// Don't add the user to userPackets yet. The collection should
-			// have only users with ready frames. Since this method is
-			// called only from the TCP connection thread it will never
-			// create a new AudioUser while a previous one is still decoding.
+			return;
 		}
 
-		user.addFrameToBuffer(pds, packetReadyHandler);
+		user.markRemoved();
+		removedUsers.add(user);
+		LockSupport.unpark(audioThread);
 	}
 
 	public void run() {
+		audioThread = Thread.currentThread();
 		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
 		try {
 			audioLoop();
@@ -120,124 +184,305 @@ public class AudioOutput implements Runnable {
 
 	public void stop() {
 		shouldRun = false;
-		synchronized (userPackets) {
-			userPackets.notify();
-		}
+		LockSupport.unpark(audioThread);
 	}
 
 	private void audioLoop() throws InterruptedException {
 		final short[] out = new short[MumbleProtocol.FRAME_SIZE];
-		final List<AudioUser> mix = new LinkedList<AudioUser>();
-
-		int buffered = 0;
-		boolean playing = false;
 
 		while (shouldRun) {
-			mix.clear();
-
 			// Get mix frames from the AudioUsers
-			fillMixFrames(mix);
-
-			// If there is output, play it now.
-			if (mix.size() > 0) {
-				// Mix all the frames into one array.
-				mix(out, mix);
-
-				at.write(out, 0, MumbleProtocol.FRAME_SIZE);
-
-				// Make sure we are playing when there are enough samples
-				// buffered.
-				if (!playing) {
-					buffered += out.length;
-
-					if (buffered >= minBufferSize) {
-						at.play();
-						playing = true;
-						buffered = 0;
-
-						Globals.logInfo(
-							this,
-							"Enough data buffered. Starting audio.");
+			final int mixCount = batchMixer != null ? fillBatch()
+				: fillMixFrames();
+
+			// If there is output, play it now. A user whose decoder missed
+			// the deadline is silent for this frame but keeps the output
+			// going.
+			if (!activeUsers.isEmpty()) {
+				if (batchMixer != null) {
+					batchMixer.mix(tempMix);
+					clip(out);
+				} else {
+					// Mix all the frames into one array.
+					mix(out, mixCount);
+
+					// Let the decoder replace the mixed frames while this one
+					// plays.
+					for (int i = 0; i < mixCount; i++) {
+						final AudioUser user = mixUsers[i];
+						mixUsers[i] = null;
+						user.releaseDecodedFrame();
+						decodeStage.request(user);
 					}
 				}
 
+				output.write(out);
+
 				// Continue with playback since we know that there is at least
-				// one AudioUser in userPackets that wasn't removed as it had
+				// one AudioUser in activeUsers that wasn't removed as it had
 				// frames for mixing.
 				continue;
 			}
 
 			// Wait for more input.
-			playing &= !pauseForInput();
-			if (!playing && buffered > 0) {
-				Globals.logWarn(this,
-					"AudioOutput: Stopped playing while buffered data present.");
+			output.idle();
+			pauseForInput();
+		}
+		output.release();
+		decodeStage.shutdown();
+		decodeStage.logStats(this);
+		releaseUsers();
+	}
+
+	/**
+	 * Clips tempMix into clipOut.
+	 */
+	private void clip(final short[] clipOut) {
+		if (softLimiter) {
+			for (int i = 0; i < MumbleProtocol.FRAME_SIZE; i++) {
+				clipOut[i] = softLimit(tempMix[i]);
+			}
+		} else {
+			for (int i = 0; i < MumbleProtocol.FRAME_SIZE; i++) {
+				final int sample = tempMix[i];
+				clipOut[i] = (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE
+					: (sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample));
 			}
 		}
-		at.flush();
-		at.stop();
 	}
 
-	private void fillMixFrames(final List<AudioUser> mix) {
-		synchronized (userPackets) {
-			final Iterator<AudioUser> i = userPackets.values().iterator();
-			while (i.hasNext()) {
-				final AudioUser user = i.next();
-				if (user.hasFrame()) {
-					mix.add(user);
+	/**
+	 * Adds the next frame of every user in the mix to the batch.
+	 *
+	 * @return Number of frames in the batch.
+	 */
+	private int fillBatch() {
+		releaseRemovedUsers();
+
+		AudioUser ready;
+		while ((ready = readyUsers.poll()) != null) {
+			if (!ready.isRemoved()) {
+				activeUsers.add(ready);
+			}
+		}
+
+		for (int i = activeUsers.size() - 1; i >= 0; i--) {
+			final AudioUser user = activeUsers.get(i);
+			if (!user.addToBatch(batchMixer) && !user.leaveMix()) {
+				activeUsers.remove(i);
+				host.setTalkState(user.getUser(), AudioOutputHost.STATE_PASSIVE);
+			}
+		}
+		return batchMixer.size();
+	}
+
+	/**
+	 * Puts the users with a decoded frame into mixUsers.
+	 *
+	 * @return Number of users to mix.
+	 */
+	private int fillMixFrames() {
+		// Users that joined now get their first decode here. With a worker
+		// pool it may not be done by this frame, which isn't counted as a
+		// missed deadline.
+		releaseRemovedUsers();
+
+		final int joinedFrom = activeUsers.size();
+		AudioUser ready;
+		while ((ready = readyUsers.poll()) != null) {
+			// A user may have been removed after it was queued.
+			if (ready.isRemoved()) {
+				continue;
+			}
+			activeUsers.add(ready);
+			decodeStage.request(ready);
+		}
+
+		if (mixUsers.length < activeUsers.size()) {
+			mixUsers = new AudioUser[activeUsers.size() * 2];
+		}
+
+		int mixCount = 0;
+		for (int i = activeUsers.size() - 1; i >= 0; i--) {
+			final AudioUser user = activeUsers.get(i);
+			if (user.getDecodedFrame() == null) {
+				// The decoder is behind. Skip the user for this frame.
+				if (i < joinedFrom) {
+					decodeStage.missedDeadline();
+				}
+				decodeStage.request(user);
+			} else if (user.isDecodedFrameAlive()) {
+				mixUsers[mixCount++] = user;
+			} else {
+				user.releaseDecodedFrame();
+				if (user.leaveMix()) {
+					decodeStage.request(user);
 				} else {
-					i.remove();
+					user.discardDecodedFrames();
+					activeUsers.remove(i);
 					host.setTalkState(
 						user.getUser(),
 						AudioOutputHost.STATE_PASSIVE);
 				}
 			}
 		}
+		return mixCount;
 	}
 
-	private void mix(final short[] clipOut, final List<AudioUser> mix) {
+	private void mix(final short[] clipOut, final int mixCount) {
+		if (mixCount == 1) {
+			System.arraycopy(
+				mixUsers[0].getDecodedFrame(),
+				0,
+				clipOut,
+				0,
+				MumbleProtocol.FRAME_SIZE);
+			return;
+		}
+
 		// Reset mix buffer.
 		Arrays.fill(tempMix, 0);
 
 		// Sum the buffers.
-		for (final AudioUser user : mix) {
-			for (int i = 0; i < tempMix.length; i++) {
-				tempMix[i] += user.lastFrame[i];
+		for (int u = 0; u < mixCount; u++) {
+			final short[] frame = mixUsers[u].getDecodedFrame();
+			for (int i = 0; i < MumbleProtocol.FRAME_SIZE; i++) {
+				tempMix[i] += frame[i];
 			}
 		}
 
 		// Clip buffer for real output.
-		for (int i = 0; i < MumbleProtocol.FRAME_SIZE; i++) {
-			clipOut[i] = (short) (Short.MAX_VALUE * (tempMix[i] < -1.0f ? -1.0f
-				: (tempMix[i] > 1.0f ? 1.0f : tempMix[i])));
-		}
+		clip(clipOut);
 	}
 
-	private boolean pauseForInput() throws InterruptedException {
-		long silentTime;
-		boolean paused = false;
-		synchronized (userPackets) {
-			silentTime = System.currentTimeMillis();
+	private void pauseForInput() throws InterruptedException {
+		final long silentTime = System.currentTimeMillis();
 
-			// Wait with the audio on
-			while (shouldRun && userPackets.isEmpty() &&
-				   (silentTime + standbyTreshold) > System.currentTimeMillis()) {
+		// Wait with the audio on
+		long remaining;
+		while (shouldRun && readyUsers.isEmpty() && removedUsers.isEmpty() &&
+			   (remaining = (silentTime + standbyTreshold) -
+							System.currentTimeMillis()) > 0) {
+			LockSupport.parkNanos(remaining * 1000000L);
+			checkInterrupted();
+		}
 
-				userPackets.wait((silentTime + standbyTreshold) -
-								 System.currentTimeMillis() + 1);
+		// If conditions are still not filled, pause audio and wait more.
+		if (shouldRun && readyUsers.isEmpty() && removedUsers.isEmpty()) {
+			output.pause();
+			Globals.logInfo(this, String.format(
+				"Standby timeout reached. Audio paused. Output latency %d ms, %d underruns.",
+				output.getLatency(),
+				output.getUnderruns()));
+			decodeStage.logStats(this);
+			NativeHandle.logStats(this);
+
+			while (shouldRun && readyUsers.isEmpty() && removedUsers.isEmpty()) {
+				LockSupport.park();
+				checkInterrupted();
 			}
+		}
+	}
 
-			// If conditions are still not filled, pause audio and wait more.
-			if (shouldRun && userPackets.isEmpty()) {
-				at.pause();
-				paused = true;
-				Globals.logInfo(this, "Standby timeout reached. Audio paused.");
+	/**
+	 * Takes the removed users out of the mix and frees them once they aren't
+	 * decoding.
+	 */
+	private void releaseRemovedUsers() {
+		AudioUser removed;
+		while ((removed = removedUsers.poll()) != null) {
+			activeUsers.remove(removed);
+			releasingUsers.add(removed);
+		}
 
-				while (shouldRun && userPackets.isEmpty()) {
-					userPackets.wait();
+		for (int i = releasingUsers.size() - 1; i >= 0; i--) {
+			final AudioUser user = releasingUsers.get(i);
+			if (releaseUser(user)) {
+				releasingUsers.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Frees a user unless a decode is still running for it.
+	 *
+	 * @return False if the user is still decoding and wasn't freed.
+	 */
+	private boolean releaseUser(final AudioUser user) {
+		// Holding the decode flag keeps new decodes from starting.
+		if (!user.beginDecode()) {
+			return false;
+		}
+		user.destroy();
+		return true;
+	}
+
+	/**
+	 * Frees the native resources of all users once nothing decodes anymore.
+	 * If the decoder workers didn't stop in time the users they still decode
+	 * for are leaked rather than freed under them.
+	 */
+	private void releaseUsers() {
+		int leaked = 0;
+		synchronized (users) {
+			for (final AudioUser user : users.values()) {
+				if (!releaseUser(user)) {
+					leaked++;
 				}
 			}
+			users.clear();
+		}
+
+		AudioUser removed;
+		while ((removed = removedUsers.poll()) != null) {
+			if (!releaseUser(removed)) {
+				leaked++;
+			}
+		}
+		for (final AudioUser user : releasingUsers) {
+			if (!releaseUser(user)) {
+				leaked++;
+			}
+		}
+		releasingUsers.clear();
+
+		if (leaked > 0) {
+			Globals.logWarn(this, String.format(
+				"Leaked the decoders of %d users still decoding",
+				leaked));
+		}
+
+		activeUsers.clear();
+		readyUsers.clear();
+		CeltCodecs.trim();
+		CeltCodecs.logStats(this);
+		if (batchMixer != null) {
+			Globals.logInfo(this, String.format(
+				"Batch mixing: %d batches with failed decodes",
+				batchMixer.getErrors()));
+		}
+		NativeHandle.logStats(this);
+	}
+
+	/**
+	 * Passes samples below LIMITER_KNEE through and compresses the part above
+	 * it so the output approaches full scale without hard clipping.
+	 */
+	private static short softLimit(final int sample) {
+		final int magnitude = sample < 0 ? -sample : sample;
+		if (magnitude <= LIMITER_KNEE) {
+			return (short) sample;
+		}
+
+		final int range = Short.MAX_VALUE - LIMITER_KNEE;
+		final int over = magnitude - LIMITER_KNEE;
+		final int limited = LIMITER_KNEE + (int) ((long) over * range / (over + range));
+		return (short) (sample < 0 ? -limited : limited);
+	}
+
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
 		}
-		return paused;
 	}
 }
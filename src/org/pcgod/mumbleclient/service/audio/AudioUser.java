@@ -1,10 +1,11 @@
 package org.pcgod.mumbleclient.service.audio;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.Settings;
 import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeHandle;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.PacketDataStream;
 import org.pcgod.mumbleclient.service.model.User;
@@ -13,6 +14,15 @@ import org.pcgod.mumbleclient.service.model.User;
  * Thread safe buffer for audio data.
  * Implements audio queue and decoding.
  *
+ * Frames are passed from the network thread to the decoder through a lock
+ * free FrameQueue. The decoder runs on one thread at a time, either a
+ * DecodeStage worker or the audio thread. It moves the queued frames into the
+ * jitter buffer and decodes up to DECODE_AHEAD frames for the mixer.
+ *
+ * The PlayoutController sets the playout delay from the measured jitter. With
+ * a jitter buffer it sets the buffer margin. Without one, the decoded speech
+ * is time scaled to keep the reorder buffer backlog at the target.
+ *
  * @author pcgod, Rantanen
  */
 public class AudioUser {
@@ -20,47 +30,138 @@ public class AudioUser {
 		public void packetReady(AudioUser user);
 	}
 
+	/**
+	 * Frames the queue can hold, about 640 ms of audio.
+	 */
+	private static final int FRAME_QUEUE_SIZE = 64;
+
+	/**
+	 * Decoded frames kept ready for the mixer.
+	 */
+	private static final int DECODE_AHEAD = 2;
+
 	private final boolean useJitterBuffer;
 
-	private final Object jbLock;
-	private final long jitterBuffer;
+	private final NativeHandle jitterBuffer;
+	private final JitterBuffer javaJitterBuffer;
 	private final int[] currentTimestamp;
-	private final Queue<Native.JitterBufferPacket> normalBuffer;
+	private final Native.JitterBufferPacket jitterPacket;
+	private final ReorderBuffer reorderBuffer;
+	private final byte[] reorderFrame;
+
+	private final PlayoutController playout = new PlayoutController();
+	/** Margin target currently set on the jitter buffer, in frames */
+	private int appliedTarget = 5;
+	private final int[] marginArgument = new int[1];
 
-	private final long celtMode;
-	private final long celtDecoder;
-	private final Queue<byte[]> dataArrayPool = new ConcurrentLinkedQueue<byte[]>();
-	float[] lastFrame = new float[MumbleProtocol.FRAME_SIZE];
+	// Time scaling for playback without a jitter buffer. Decoded frames go
+	// through the scaler into scaledPcm, from where the mixer gets whole
+	// frames.
+	private final TimeScaler timeScaler;
+	private final short[] decodedPcm;
+	private final short[] scaledPcm;
+	private int scaledLength;
+
+	private final FrameQueue frames = new FrameQueue(FRAME_QUEUE_SIZE);
+
+	/**
+	 * Set while the user is in the audio thread's mix. The producer signals
+	 * the PacketReadyHandler only when it sets this.
+	 */
+	private final AtomicBoolean ready = new AtomicBoolean();
+
+	/**
+	 * Set while a decode is scheduled or running. Only one thread decodes
+	 * for the user at a time.
+	 */
+	private final AtomicBoolean decoding = new AtomicBoolean();
+
+	/**
+	 * Set when the user has left the server and the audio thread should
+	 * free it.
+	 */
+	private volatile boolean removed;
+
+	final Runnable decodeTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				decodeAhead();
+			} finally {
+				decoding.set(false);
+			}
+		}
+	};
+
+	// Decoded frames, a single producer, single consumer ring between the
+	// decoder and the audio thread.
+	private final short[][] decodedFrames = new short[DECODE_AHEAD][MumbleProtocol.FRAME_SIZE];
+	private final boolean[] decodedAlive = new boolean[DECODE_AHEAD];
+	private volatile int decodedHead;
+	private volatile int decodedTail;
+
+	private final DecodeStage decodeStage;
+	private final CeltDecoder celtDecoder;
 	private final User user;
 
 	private int missedFrames = 0;
 
-	public AudioUser(final User user, final boolean useJitterBuffer) {
+	// Frame picked by nextFrame() for decoding.
+	private byte[] frameData;
+	private int frameLength;
+
+	public AudioUser(
+		final User user,
+		final String jitterBufferType,
+		final DecodeStage decodeStage) {
 		this.user = user;
-		this.useJitterBuffer = useJitterBuffer;
+		this.useJitterBuffer = !jitterBufferType.equals(Settings.ARRAY_JITTER_NONE);
+		this.decodeStage = decodeStage;
 
-		celtMode = Native.celt_mode_create(
-			MumbleProtocol.SAMPLE_RATE,
-			MumbleProtocol.FRAME_SIZE);
-		celtDecoder = Native.celt_decoder_create(celtMode, 1);
+		celtDecoder = CeltCodecs.acquireDecoder();
 
 		// Initialize one of the buffers.
-		if (useJitterBuffer) {
-			jbLock = new Object();
+		if (jitterBufferType.equals(Settings.ARRAY_JITTER_JAVA)) {
 			currentTimestamp = new int[1];
-			jitterBuffer = Native.jitter_buffer_init(MumbleProtocol.FRAME_SIZE);
+			jitterPacket = new Native.JitterBufferPacket();
+			jitterPacket.data = new byte[128];
+			javaJitterBuffer = new JitterBuffer(MumbleProtocol.FRAME_SIZE);
+			javaJitterBuffer.setMargin(appliedTarget * MumbleProtocol.FRAME_SIZE);
+			jitterBuffer = null;
+			reorderBuffer = null;
+			reorderFrame = null;
+		} else if (useJitterBuffer) {
+			currentTimestamp = new int[1];
+			jitterPacket = new Native.JitterBufferPacket();
+			jitterPacket.data = new byte[128];
+			jitterBuffer = NativeHandle.wrap(
+				NativeHandle.Type.JITTER_BUFFER,
+				Native.jitter_buffer_init(MumbleProtocol.FRAME_SIZE));
 			Native.jitter_buffer_ctl(
-				jitterBuffer,
+				jitterBuffer.get(),
 				0,
-				new int[] { 5 * MumbleProtocol.FRAME_SIZE });
-
-			normalBuffer = null;
+				new int[] { appliedTarget * MumbleProtocol.FRAME_SIZE });
+			javaJitterBuffer = null;
+			reorderBuffer = null;
+			reorderFrame = null;
 		} else {
-			normalBuffer = new ConcurrentLinkedQueue<Native.JitterBufferPacket>();
-
-			jitterBuffer = 0;
+			jitterBuffer = null;
+			javaJitterBuffer = null;
 			currentTimestamp = null;
-			jbLock = null;
+			jitterPacket = null;
+			reorderBuffer = new ReorderBuffer();
+			reorderFrame = new byte[128];
+		}
+
+		if (reorderBuffer != null) {
+			timeScaler = new TimeScaler();
+			decodedPcm = new short[MumbleProtocol.FRAME_SIZE];
+			scaledPcm = new short[MumbleProtocol.FRAME_SIZE +
+								  TimeScaler.MAX_OUTPUT];
+		} else {
+			timeScaler = null;
+			decodedPcm = null;
+			scaledPcm = null;
 		}
 
 		Globals.logInfo(this, "Created");
@@ -90,53 +191,99 @@ public class AudioUser {
 		int dataHeader;
 		int frameCount = 0;
 
-		byte[] data = null;
-		// Jitter buffer can use one data array to pass all the packets to the buffer.
-		if (useJitterBuffer) {
-			data = acquireDataArray();
+		// Arrival time for the playout controller, 0 marks frames other than
+		// the first of a packet.
+		int arrival = (int) (System.nanoTime() / 1000000);
+		if (arrival == 0) {
+			arrival = 1;
 		}
+
 		do {
 			dataHeader = pds.next();
 			final int dataLength = dataHeader & 0x7f;
 			if (dataLength > 0) {
-
-				// If not using jitter buffer acquire data array for each packet.
-				// They are released when dequeueing them fromt he buffer.
-				if (!useJitterBuffer) {
-					data = acquireDataArray();
-				}
-				pds.dataBlock(data, dataLength);
-
-				final Native.JitterBufferPacket jbp = new Native.JitterBufferPacket();
-				jbp.data = data;
-				jbp.len = dataLength;
-
-				if (useJitterBuffer) {
+				final Native.JitterBufferPacket jbp = frames.claim();
+				if (jbp == null) {
+					// The audio thread is far behind. Drop the frame
+					// instead of blocking the network thread.
+					pds.skip(dataLength);
+				} else {
+					pds.dataBlock(jbp.data, dataLength);
+					jbp.len = dataLength;
 					jbp.timestamp = (short) (sequence + frameCount) *
 									MumbleProtocol.FRAME_SIZE;
 					jbp.span = MumbleProtocol.FRAME_SIZE;
+					jbp.sequence = (short) (sequence + frameCount);
+					jbp.user_data = frameCount == 0 ? arrival : 0;
+					frames.publish();
 
-					synchronized (jbLock) {
-						Native.jitter_buffer_put(jitterBuffer, jbp);
+					if (ready.compareAndSet(false, true)) {
+						readyHandler.packetReady(this);
 					}
-				} else {
-					normalBuffer.add(jbp);
 				}
-
-				readyHandler.packetReady(this);
 				frameCount++;
 
 			}
 		} while ((dataHeader & 0x80) > 0 && pds.isValid());
 
-		if (useJitterBuffer) {
-			freeDataArray(data);
-		}
 		return true;
 	}
 
-	public void freeDataArray(final byte[] data) {
-		dataArrayPool.add(data);
+	/**
+	 * Adds the next frame to a batch instead of decoding it here. Used by
+	 * the audio thread when the BatchMixer decodes and mixes in one native
+	 * call. Time scaling isn't applied in that case.
+	 *
+	 * @return False if the user has been without frames for too long. No
+	 *         frame is added then.
+	 */
+	public boolean addToBatch(final BatchMixer batch) {
+		final boolean alive = nextFrame();
+		if (alive) {
+			batch.add(celtDecoder, frameData, frameLength);
+		}
+		return alive;
+	}
+
+	/**
+	 * Marks a decode as scheduled.
+	 *
+	 * @return False if one is already scheduled or running.
+	 */
+	public boolean beginDecode() {
+		return decoding.compareAndSet(false, true);
+	}
+
+	/**
+	 * Releases the native resources. The user must not be decoding or used
+	 * afterwards.
+	 */
+	public void destroy() {
+		CeltCodecs.releaseDecoder(celtDecoder);
+		if (jitterBuffer != null) {
+			jitterBuffer.close();
+		}
+	}
+
+	/**
+	 * Drops the decoded frames. Audio thread only.
+	 */
+	public void discardDecodedFrames() {
+		decodedHead = decodedTail;
+	}
+
+	/**
+	 * Audio thread only.
+	 *
+	 * @return The oldest decoded frame or null if the decoder hasn't finished
+	 *         one yet. Valid until releaseDecodedFrame().
+	 */
+	public short[] getDecodedFrame() {
+		final int h = decodedHead;
+		if (h == decodedTail) {
+			return null;
+		}
+		return decodedFrames[h % DECODE_AHEAD];
 	}
 
 	public User getUser() {
@@ -144,78 +291,232 @@ public class AudioUser {
 	}
 
 	/**
-	 * Checks if this user has frames and sets lastFrame.
+	 * Audio thread only.
+	 *
+	 * @return False if the frame returned by getDecodedFrame() was decoded
+	 *         after the user's frames ran out.
+	 */
+	public boolean isDecodedFrameAlive() {
+		return decodedAlive[decodedHead % DECODE_AHEAD];
+	}
+
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Takes the user out of the mix after the frames ran out.
+	 * Called only from the audio thread.
 	 *
-	 * @return
+	 * @return True if a frame arrived meanwhile. The user stays in the mix
+	 *         and the PacketReadyHandler won't be signaled for it.
+	 */
+	public boolean leaveMix() {
+		ready.set(false);
+		return !frames.isEmpty() && ready.compareAndSet(false, true);
+	}
+
+	/**
+	 * Marks the user as gone from the server. Network thread only.
 	 */
-	public boolean hasFrame() {
+	public void markRemoved() {
+		removed = true;
+	}
+
+	/**
+	 * Releases the frame returned by getDecodedFrame(). Audio thread only.
+	 */
+	public void releaseDecodedFrame() {
+		decodedHead = decodedHead + 1;
+	}
+
+	/**
+	 * Decodes frames until DECODE_AHEAD of them are ready.
+	 */
+	private void decodeAhead() {
+		int t = decodedTail;
+		while (t - decodedHead < DECODE_AHEAD) {
+			final int slot = t % DECODE_AHEAD;
+			final long start = System.nanoTime();
+			if (timeScaler != null) {
+				decodedAlive[slot] = decodeScaled(decodedFrames[slot]);
+			} else {
+				decodedAlive[slot] = decodeFrame(decodedFrames[slot]);
+			}
+			decodeStage.recordDecode(System.nanoTime() - start);
+
+			decodedTail = ++t;
+		}
+	}
+
+	/**
+	 * Decodes through the time scaler until a whole frame is available.
+	 *
+	 * @return False if the user has been without frames for too long.
+	 */
+	private boolean decodeScaled(final short[] pcm) {
+		boolean alive = true;
+		while (scaledLength < MumbleProtocol.FRAME_SIZE) {
+			alive = decodeFrame(decodedPcm);
+
+			// Concealed frames are played as they are.
+			int mode = TimeScaler.NORMAL;
+			if (missedFrames == 0) {
+				final int backlog = reorderBuffer.getBacklog();
+				final int target = playout.getTargetFrames();
+				if (backlog > target + 1) {
+					mode = TimeScaler.ACCELERATE;
+				} else if (backlog < target) {
+					mode = TimeScaler.EXPAND;
+				}
+			}
+
+			scaledLength += timeScaler.process(
+				decodedPcm,
+				mode,
+				scaledPcm,
+				scaledLength);
+		}
+
+		System.arraycopy(scaledPcm, 0, pcm, 0, MumbleProtocol.FRAME_SIZE);
+		scaledLength -= MumbleProtocol.FRAME_SIZE;
+		System.arraycopy(
+			scaledPcm,
+			MumbleProtocol.FRAME_SIZE,
+			scaledPcm,
+			0,
+			scaledLength);
+		return alive;
+	}
+
+	/**
+	 * Decodes the next frame into pcm, concealing it if there's no frame.
+	 *
+	 * @return False if the user has been without frames for too long.
+	 */
+	private boolean decodeFrame(final short[] pcm) {
+		final boolean alive = nextFrame();
+		celtDecoder.decode(frameData, frameLength, pcm);
+		return alive;
+	}
+
+	/**
+	 * Takes the next encoded frame from the buffers into frameData and
+	 * frameLength. frameData is null if the frame is missing and has to be
+	 * concealed.
+	 *
+	 * @return False if the user has been without frames for too long.
+	 */
+	private boolean nextFrame() {
 		byte[] data = null;
 		int dataLength = 0;
 
-		Native.JitterBufferPacket jbp;
-
 		if (useJitterBuffer) {
-			jbp = new Native.JitterBufferPacket();
-			jbp.data = acquireDataArray();
-			jbp.len = jbp.data.length;
-
-			synchronized (jbLock) {
-				if (Native.jitter_buffer_get(
-					jitterBuffer,
-					jbp,
-					MumbleProtocol.FRAME_SIZE,
-					currentTimestamp) == 0) {
-
-					data = jbp.data;
-					dataLength = jbp.len;
-					missedFrames = 0;
+			// The jitter buffers copy the data so the slots are released
+			// right away.
+			Native.JitterBufferPacket jbp;
+			while ((jbp = frames.peek()) != null) {
+				packetArrived(jbp);
+				if (javaJitterBuffer != null) {
+					javaJitterBuffer.put(jbp);
 				} else {
-					missedFrames++;
+					Native.jitter_buffer_put(jitterBuffer.get(), jbp);
 				}
+				frames.remove();
+			}
+			updateMargin();
 
-				Native.jitter_buffer_update_delay(jitterBuffer, null, null);
+			jitterPacket.len = jitterPacket.data.length;
+			final int result;
+			if (javaJitterBuffer != null) {
+				result = javaJitterBuffer.get(
+					jitterPacket,
+					MumbleProtocol.FRAME_SIZE,
+					currentTimestamp);
+			} else {
+				result = Native.jitter_buffer_get(
+					jitterBuffer.get(),
+					jitterPacket,
+					MumbleProtocol.FRAME_SIZE,
+					currentTimestamp);
 			}
 
-		} else {
-			jbp = normalBuffer.poll();
-			if (jbp != null) {
-				data = jbp.data;
-				dataLength = jbp.len;
+			if (result == JitterBuffer.JITTER_BUFFER_OK) {
+
+				data = jitterPacket.data;
+				dataLength = jitterPacket.len;
 				missedFrames = 0;
 			} else {
 				missedFrames++;
 			}
-		}
 
-		Native.celt_decode_float(celtDecoder, data, dataLength, lastFrame);
+			if (javaJitterBuffer != null) {
+				javaJitterBuffer.updateDelay();
+			} else {
+				Native.jitter_buffer_update_delay(jitterBuffer.get(), null, null);
+			}
+		} else {
+			// Without a jitter buffer the frames only go through the reorder
+			// buffer, which conceals gaps instead of playing out of order.
+			Native.JitterBufferPacket jbp;
+			while ((jbp = frames.peek()) != null) {
+				packetArrived(jbp);
+				reorderBuffer.put(jbp);
+				frames.remove();
+			}
 
-		if (data != null) {
-			freeDataArray(data);
+			final int length = reorderBuffer.get(reorderFrame);
+			if (length >= 0) {
+				data = reorderFrame;
+				dataLength = length;
+				missedFrames = 0;
+			} else {
+				missedFrames++;
+			}
 		}
 
-		if (useJitterBuffer) {
-			synchronized (jbLock) {
-				Native.jitter_buffer_tick(jitterBuffer);
-			}
+		frameData = data;
+		frameLength = dataLength;
+
+		if (javaJitterBuffer != null) {
+			javaJitterBuffer.tick();
+		} else if (useJitterBuffer) {
+			Native.jitter_buffer_tick(jitterBuffer.get());
+		} else if (missedFrames == 10) {
+			Globals.logInfo(this, String.format(
+				"Reorder buffer: %d frames concealed, %d dropped, %d accelerated, %d expanded. Jitter %d ms, target %d frames",
+				reorderBuffer.getConcealed(),
+				reorderBuffer.getDropped(),
+				timeScaler.getAccelerated(),
+				timeScaler.getExpanded(),
+				playout.getJitter(),
+				playout.getTargetFrames()));
 		}
 
 		return (missedFrames < 10);
 	}
 
-	private byte[] acquireDataArray() {
-		byte[] data = dataArrayPool.poll();
-
-		if (data == null) {
-			data = new byte[128];
+	private void packetArrived(final Native.JitterBufferPacket jbp) {
+		if (jbp.user_data != 0) {
+			playout.packetArrived(jbp.user_data, jbp.sequence);
 		}
-
-		return data;
 	}
 
-	@Override
-	protected final void finalize() {
-		Native.celt_decoder_destroy(celtDecoder);
-		Native.celt_mode_destroy(celtMode);
-		Native.jitter_buffer_destroy(jitterBuffer);
+	/**
+	 * Moves the jitter buffer margin to the playout target.
+	 */
+	private void updateMargin() {
+		final int target = playout.getTargetFrames();
+		if (target == appliedTarget) {
+			return;
+		}
+
+		appliedTarget = target;
+		if (javaJitterBuffer != null) {
+			javaJitterBuffer.setMargin(target * MumbleProtocol.FRAME_SIZE);
+		} else {
+			marginArgument[0] = target * MumbleProtocol.FRAME_SIZE;
+			Native.jitter_buffer_ctl(jitterBuffer.get(), 0, marginArgument);
+		}
 	}
 }
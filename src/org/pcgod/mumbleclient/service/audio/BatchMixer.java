@@ -0,0 +1,134 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeBuffer;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Decodes and mixes the frames of all speakers in one native call.
+ *
+ * The audio thread adds one encoded frame per speaker with add() and gets
+ * the sum of the decoded frames from mix(). Compared to decoding each user
+ * separately this crosses JNI once per output frame instead of once per
+ * speaker. The frames are passed in direct buffers, so nothing is pinned or
+ * copied by JNI either.
+ *
+ * Only for use in the audio thread.
+ */
+class BatchMixer {
+	private static final int MAX_FRAME_SIZE = 128;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private int capacity;
+	private NativeBuffer decoders;
+	private NativeBuffer data;
+	private NativeBuffer lengths;
+	private NativeBuffer pcm;
+	private final NativeBuffer mix = new NativeBuffer(MumbleProtocol.FRAME_SIZE * 4);
+	private final IntBuffer mixInts = mix.buffer().asIntBuffer();
+
+	private int count;
+	private int dataLength;
+	private int errors;
+
+	public BatchMixer() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Adds a frame to the batch.
+	 *
+	 * @param frame
+	 *            Encoded frame or null to conceal a lost frame.
+	 */
+	public void add(final CeltDecoder decoder, final byte[] frame, final int length) {
+		if (count == capacity) {
+			grow();
+		}
+
+		final int frameLength = frame != null ? length : 0;
+		decoders.buffer().putLong(count * 8, decoder.pointer());
+		lengths.buffer().putInt(count * 4, frameLength);
+		if (frameLength > 0) {
+			final ByteBuffer buffer = data.buffer();
+			buffer.position(dataLength);
+			buffer.put(frame, 0, frameLength);
+			dataLength += frameLength;
+		}
+		count++;
+	}
+
+	/**
+	 * @return Batches in which a frame failed to decode.
+	 */
+	public int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Decodes the frames added since the last call and sums them.
+	 *
+	 * @param sum
+	 *            Receives FRAME_SIZE summed samples, not clipped.
+	 * @return Number of frames mixed.
+	 */
+	public int mix(final int[] sum) {
+		final int mixed = count;
+		final int result = Native.celt_decode_mix_direct(
+			decoders.address(),
+			count,
+			data.address(),
+			lengths.address(),
+			pcm.address(),
+			MumbleProtocol.FRAME_SIZE,
+			mix.address());
+		if (result != 0) {
+			errors++;
+		}
+
+		mixInts.clear();
+		mixInts.get(sum, 0, MumbleProtocol.FRAME_SIZE);
+
+		count = 0;
+		dataLength = 0;
+		return mixed;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private void allocate(final int newCapacity) {
+		capacity = newCapacity;
+		decoders = new NativeBuffer(newCapacity * 8);
+		data = new NativeBuffer(newCapacity * MAX_FRAME_SIZE);
+		lengths = new NativeBuffer(newCapacity * 4);
+		pcm = new NativeBuffer(newCapacity * MumbleProtocol.FRAME_SIZE * 2);
+	}
+
+	/**
+	 * Doubles the capacity, keeping the frames already added.
+	 */
+	private void grow() {
+		final NativeBuffer oldDecoders = decoders;
+		final NativeBuffer oldData = data;
+		final NativeBuffer oldLengths = lengths;
+
+		allocate(capacity * 2);
+		for (int i = 0; i < count; i++) {
+			decoders.buffer().putLong(i * 8, oldDecoders.buffer().getLong(i * 8));
+			lengths.buffer().putInt(i * 4, oldLengths.buffer().getInt(i * 4));
+		}
+		for (int i = 0; i < dataLength; i++) {
+			data.buffer().put(i, oldData.buffer().get(i));
+		}
+
+		Globals.logInfo(this, String.format(
+			"Batch grown to %d speakers",
+			capacity));
+	}
+}
@@ -0,0 +1,144 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.Globals;
+
+/**
+ * Chooses the encoder bitrate.
+ *
+ * The audio quality setting is the ceiling. The rate is capped so the voice
+ * packets, headers included, fit in the bandwidth the server allows. It
+ * backs off when the server's packets keep getting lost or the voice falls
+ * back to the TCP tunnel and ramps back up slowly once the link recovers.
+ * Only fresh loss samples count, a quiet channel gives no evidence either
+ * way and leaves the rate alone.
+ *
+ * Only for use in the record thread.
+ */
+class BitrateController {
+	/** Lowest rate CELT still sounds like speech at */
+	static final int MIN_BITRATE = 16000;
+
+	/** Loss that counts as congestion */
+	private static final float LOSS_HIGH = 0.03f;
+	/** Loss low enough to ramp up again */
+	private static final float LOSS_LOW = 0.01f;
+	/** Congested updates in a row before backing off */
+	private static final int BACKOFF_UPDATES = 3;
+	/** Clean updates in a row before ramping up */
+	private static final int RAMP_UPDATES = 5;
+	/** Each ramp up step as a fraction of the ceiling */
+	private static final int RAMP_STEP_DIVISOR = 10;
+
+	private final int ceiling;
+	private int bitrate;
+	private int congestedUpdates;
+	private int cleanUpdates;
+	private boolean tunnelling;
+
+	/**
+	 * @param ceiling
+	 *            The configured bitrate.
+	 */
+	public BitrateController(final int ceiling) {
+		this.ceiling = Math.max(ceiling, MIN_BITRATE);
+		bitrate = this.ceiling;
+	}
+
+	/**
+	 * Bitrate of the encoded audio that fits a bandwidth limit.
+	 *
+	 * @param maxBandwidth
+	 *            Limit in bits per second, headers included.
+	 * @return The rate, 0 if not even the headers fit.
+	 */
+	public static int getBitrateForBandwidth(
+		final int maxBandwidth,
+		final int framesPerPacket,
+		final boolean tunnelling) {
+		// The headers cost the same for any frame size.
+		final int overhead = PacketSizeController.getBitrate(
+			framesPerPacket,
+			0,
+			tunnelling);
+		return Math.max(maxBandwidth - overhead, 0);
+	}
+
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	/**
+	 * Checks the link and changes the bitrate if needed. Called about once a
+	 * second.
+	 *
+	 * @param framesPerPacket
+	 *            Frames in a packet.
+	 * @param tunnelling
+	 *            True if the voice is tunnelled over TCP.
+	 * @param loss
+	 *            Loss of the packets from the server.
+	 * @param lossSampled
+	 *            True if the loss was measured since the last update. An
+	 *            old value doesn't count towards backing off or ramping up.
+	 * @param maxBandwidth
+	 *            The server limit in bits per second or 0.
+	 * @return True if the bitrate changed.
+	 */
+	public boolean update(
+		final int framesPerPacket,
+		final boolean tunnelling,
+		final float loss,
+		final boolean lossSampled,
+		final int maxBandwidth) {
+		int wanted = bitrate;
+
+		final boolean fellBack = tunnelling && !this.tunnelling;
+		this.tunnelling = tunnelling;
+
+		if (tunnelling) {
+			cleanUpdates = 0;
+		}
+		if (lossSampled) {
+			if (loss >= LOSS_HIGH) {
+				congestedUpdates++;
+				cleanUpdates = 0;
+			} else if (loss < LOSS_LOW && !tunnelling) {
+				cleanUpdates++;
+				congestedUpdates = 0;
+			} else {
+				congestedUpdates = 0;
+				cleanUpdates = 0;
+			}
+		}
+
+		if (fellBack || congestedUpdates >= BACKOFF_UPDATES) {
+			wanted = wanted * 3 / 4;
+			congestedUpdates = 0;
+		} else if (lossSampled && cleanUpdates >= RAMP_UPDATES) {
+			wanted += ceiling / RAMP_STEP_DIVISOR;
+		}
+
+		wanted = Math.min(wanted, ceiling);
+		if (maxBandwidth > 0) {
+			wanted = Math.min(wanted, getBitrateForBandwidth(
+				maxBandwidth,
+				framesPerPacket,
+				tunnelling));
+		}
+		wanted = Math.max(wanted, MIN_BITRATE);
+
+		if (wanted == bitrate) {
+			return false;
+		}
+
+		Globals.logInfo(this, String.format(
+			"Bitrate %d bit/s: loss %.1f%%, %s, %d frames per packet, max %d bit/s",
+			wanted,
+			loss * 100,
+			tunnelling ? "TCP" : "UDP",
+			framesPerPacket,
+			maxBandwidth));
+		bitrate = wanted;
+		return true;
+	}
+}
@@ -0,0 +1,110 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.jni.NativeBuffer;
+
+/**
+ * Bounded single producer, single consumer ring of recorded frames.
+ *
+ * Works like FrameQueue but the slots are direct buffers, so AudioRecord
+ * reads into a slot and the encoder works on its address without copying.
+ * The producer fills the slot returned by claim() and makes it visible with
+ * publish(). The consumer reads the slot returned by peek() and hands it back
+ * with remove().
+ *
+ * Neither side takes a lock. The head and tail indices are each written by
+ * one side only, and the volatile writes publish the slot contents.
+ */
+class CaptureRing {
+	private final NativeBuffer[] slots;
+	private final int mask;
+
+	/**
+	 * Index of the next slot to read. Written by the consumer.
+	 */
+	private volatile int head;
+
+	/**
+	 * Index of the next slot to write. Written by the producer.
+	 */
+	private volatile int tail;
+
+	/**
+	 * @param capacity
+	 *            Number of slots, must be a power of two
+	 * @param frameBytes
+	 *            Size of a slot
+	 */
+	public CaptureRing(final int capacity, final int frameBytes) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two");
+		}
+
+		slots = new NativeBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new NativeBuffer(frameBytes);
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Producer only.
+	 *
+	 * @return The next free slot or null if the ring is full.
+	 */
+	public NativeBuffer claim() {
+		final int t = tail;
+		if (t - head == slots.length) {
+			return null;
+		}
+		return slots[t & mask];
+	}
+
+	/**
+	 * Consumer only.
+	 *
+	 * @return The oldest published frame or null if the ring is empty.
+	 */
+	public NativeBuffer peek() {
+		final int h = head;
+		if (h == tail) {
+			return null;
+		}
+		return slots[h & mask];
+	}
+
+	/**
+	 * Consumer only.
+	 *
+	 * @param index
+	 *            Position from the oldest published frame.
+	 * @return The frame or null if fewer frames are published.
+	 */
+	public NativeBuffer peek(final int index) {
+		final int h = head;
+		if (tail - h <= index) {
+			return null;
+		}
+		return slots[(h + index) & mask];
+	}
+
+	/**
+	 * Producer only. Publishes the slot returned by the last claim().
+	 */
+	public void publish() {
+		tail = tail + 1;
+	}
+
+	/**
+	 * Consumer only. Releases the oldest published frame.
+	 */
+	public void remove() {
+		head = head + 1;
+	}
+
+	/**
+	 * @return Number of published frames.
+	 */
+	public int size() {
+		return tail - head;
+	}
+}
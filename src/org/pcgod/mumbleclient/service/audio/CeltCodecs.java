@@ -0,0 +1,195 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeHandle;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Owns the native CELT modes, encoders and decoders of the process.
+ *
+ * A mode is shared by everything that uses the same sample rate and frame
+ * size and is destroyed when its last user releases it. Decoders are reset
+ * and kept in a small pool with their direct buffers when released, since
+ * users come and go all the time on a busy server. Everything is released
+ * explicitly, the live handles are counted by NativeHandle.
+ *
+ * Thread safe.
+ */
+final class CeltCodecs {
+	private static class SharedMode {
+		final NativeHandle handle;
+		int references;
+
+		SharedMode(final NativeHandle handle) {
+			this.handle = handle;
+		}
+	}
+
+	/** Released decoders kept for reuse */
+	private static final int MAX_IDLE_DECODERS = 4;
+
+	private static final Map<Long, SharedMode> modes = new HashMap<Long, SharedMode>();
+	private static final CeltDecoder[] idleDecoders = new CeltDecoder[MAX_IDLE_DECODERS];
+	private static int idleDecoderCount;
+
+	/** Decoders handed out and not released yet */
+	private static int usedDecoders;
+	private static int createdDecoders;
+	private static int reusedDecoders;
+
+	/**
+	 * Gets a decoder for MumbleProtocol.SAMPLE_RATE and FRAME_SIZE, reusing a
+	 * pooled one if there is one. Release it with releaseDecoder.
+	 */
+	public static synchronized CeltDecoder acquireDecoder() {
+		if (idleDecoderCount > 0) {
+			final CeltDecoder decoder = idleDecoders[--idleDecoderCount];
+			idleDecoders[idleDecoderCount] = null;
+			usedDecoders++;
+			reusedDecoders++;
+			return decoder;
+		}
+
+		final NativeHandle mode = acquireMode(
+			MumbleProtocol.SAMPLE_RATE,
+			MumbleProtocol.FRAME_SIZE);
+		final CeltDecoder decoder;
+		try {
+			decoder = new CeltDecoder(NativeHandle.wrap(
+				NativeHandle.Type.CELT_DECODER,
+				Native.celt_decoder_create(mode.get(), 1)));
+		} catch (final RuntimeException e) {
+			releaseMode(MumbleProtocol.SAMPLE_RATE, MumbleProtocol.FRAME_SIZE);
+			throw e;
+		}
+		usedDecoders++;
+		createdDecoders++;
+		return decoder;
+	}
+
+	/**
+	 * Gets the shared mode for the sample rate and frame size. Release it
+	 * with releaseMode.
+	 */
+	public static synchronized NativeHandle acquireMode(
+		final int sampleRate,
+		final int frameSize) {
+		final Long key = modeKey(sampleRate, frameSize);
+		SharedMode mode = modes.get(key);
+		if (mode == null) {
+			mode = new SharedMode(NativeHandle.wrap(
+				NativeHandle.Type.CELT_MODE,
+				Native.celt_mode_create(sampleRate, frameSize)));
+			modes.put(key, mode);
+		}
+		mode.references++;
+		return mode.handle;
+	}
+
+	/**
+	 * Creates a mono encoder with a shared mode. Release it with
+	 * destroyEncoder.
+	 */
+	public static synchronized NativeHandle createEncoder(
+		final int sampleRate,
+		final int frameSize) {
+		final NativeHandle mode = acquireMode(sampleRate, frameSize);
+		try {
+			return NativeHandle.wrap(
+				NativeHandle.Type.CELT_ENCODER,
+				Native.celt_encoder_create(mode.get(), 1));
+		} catch (final RuntimeException e) {
+			releaseMode(sampleRate, frameSize);
+			throw e;
+		}
+	}
+
+	public static synchronized void destroyEncoder(
+		final NativeHandle encoder,
+		final int sampleRate,
+		final int frameSize) {
+		encoder.close();
+		releaseMode(sampleRate, frameSize);
+	}
+
+	public static synchronized int getIdleDecoders() {
+		return idleDecoderCount;
+	}
+
+	public static synchronized int getUsedDecoders() {
+		return usedDecoders;
+	}
+
+	public static void logStats(final Object source) {
+		final String stats;
+		synchronized (CeltCodecs.class) {
+			stats = String.format(
+				"CELT decoders: %d in use, %d idle. %d created, %d reused",
+				usedDecoders,
+				idleDecoderCount,
+				createdDecoders,
+				reusedDecoders);
+		}
+		Globals.logInfo(source, stats);
+	}
+
+	/**
+	 * Returns a decoder from acquireDecoder. The decoder is reset and pooled
+	 * or destroyed if the pool is full.
+	 */
+	public static synchronized void releaseDecoder(final CeltDecoder decoder) {
+		usedDecoders--;
+		if (idleDecoderCount < MAX_IDLE_DECODERS) {
+			decoder.reset();
+			idleDecoders[idleDecoderCount++] = decoder;
+			return;
+		}
+
+		destroyDecoder(decoder);
+	}
+
+	public static synchronized void releaseMode(
+		final int sampleRate,
+		final int frameSize) {
+		final Long key = modeKey(sampleRate, frameSize);
+		final SharedMode mode = modes.get(key);
+		if (mode == null) {
+			Globals.logError(CeltCodecs.class, String.format(
+				"Released CELT mode %d/%d that isn't in use",
+				sampleRate,
+				frameSize));
+			return;
+		}
+
+		if (--mode.references == 0) {
+			modes.remove(key);
+			mode.handle.close();
+		}
+	}
+
+	/**
+	 * Destroys the pooled decoders and the modes only they were using.
+	 */
+	public static synchronized void trim() {
+		while (idleDecoderCount > 0) {
+			destroyDecoder(idleDecoders[--idleDecoderCount]);
+			idleDecoders[idleDecoderCount] = null;
+		}
+	}
+
+	private static void destroyDecoder(final CeltDecoder decoder) {
+		decoder.close();
+		releaseMode(MumbleProtocol.SAMPLE_RATE, MumbleProtocol.FRAME_SIZE);
+	}
+
+	private static Long modeKey(final int sampleRate, final int frameSize) {
+		return Long.valueOf(((long) sampleRate << 32) | frameSize);
+	}
+
+	private CeltCodecs() {
+	}
+}
@@ -0,0 +1,83 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ShortBuffer;
+
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeBuffer;
+import org.pcgod.mumbleclient.jni.NativeHandle;
+import org.pcgod.mumbleclient.jni.celtConstants;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * CELT decoder with its own direct buffers for the encoded and decoded
+ * frame. The native call works on the direct buffers, so no Java arrays are
+ * pinned or copied by JNI. The buffers are pooled along with the decoder by
+ * CeltCodecs.
+ *
+ * Used by one thread at a time.
+ */
+class CeltDecoder {
+	/** Largest frame the 7 bit length header allows */
+	private static final int MAX_FRAME_SIZE = 128;
+
+	private final NativeHandle handle;
+	private final NativeBuffer encoded = new NativeBuffer(MAX_FRAME_SIZE);
+	private final NativeBuffer decoded = new NativeBuffer(MumbleProtocol.FRAME_SIZE * 2);
+	private final ShortBuffer decodedShorts = decoded.buffer().asShortBuffer();
+
+	CeltDecoder(final NativeHandle handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Decodes a frame.
+	 *
+	 * @param data
+	 *            Encoded frame or null to conceal a lost frame.
+	 * @param length
+	 *            Length of the encoded frame.
+	 * @param pcm
+	 *            Receives FRAME_SIZE samples.
+	 * @return The CELT result code.
+	 */
+	public int decode(final byte[] data, final int length, final short[] pcm) {
+		long dataAddress = 0;
+		if (data != null) {
+			encoded.buffer().clear();
+			encoded.buffer().put(data, 0, length);
+			dataAddress = encoded.address();
+		}
+
+		final int result = Native.celt_decode_direct(
+			handle.get(),
+			dataAddress,
+			data != null ? length : 0,
+			decoded.address());
+
+		decodedShorts.clear();
+		decodedShorts.get(pcm, 0, MumbleProtocol.FRAME_SIZE);
+		return result;
+	}
+
+	void close() {
+		handle.close();
+	}
+
+	/**
+	 * @return The native decoder, for batched calls.
+	 */
+	long pointer() {
+		return handle.get();
+	}
+
+	/**
+	 * Clears the decoder state so the next stream doesn't start from the
+	 * previous speaker's.
+	 */
+	void reset() {
+		Native.celt_decoder_ctl(
+			handle.get(),
+			celtConstants.CELT_RESET_STATE,
+			0);
+	}
+}
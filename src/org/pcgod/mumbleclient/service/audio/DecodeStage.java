@@ -0,0 +1,138 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pcgod.mumbleclient.Globals;
+
+/**
+ * Decodes frames ahead of the mixer.
+ *
+ * Each AudioUser keeps a few decoded frames ready so the audio thread only
+ * sums PCM and writes it to the AudioTrack. On multi-core devices the
+ * decoding runs on a small worker pool and the audio thread's deadline no
+ * longer grows with the number of talkers. On single core devices the frames
+ * are decoded in the audio thread after the mix.
+ */
+class DecodeStage {
+	private static final int MAX_WORKERS = 2;
+	private static final int SHUTDOWN_TIMEOUT_MS = 1000;
+
+	private final ExecutorService workers;
+
+	private final AtomicLong decodeNanos = new AtomicLong();
+	private final AtomicLong decodedFrames = new AtomicLong();
+
+	/**
+	 * Frames skipped because the decoder wasn't done in time. Only for use in
+	 * the audio thread.
+	 */
+	private int missedDeadlines;
+
+	public DecodeStage() {
+		final int workerCount = Math.max(0, Math.min(
+			MAX_WORKERS,
+			Runtime.getRuntime().availableProcessors() - 1));
+
+		if (workerCount > 0) {
+			workers = Executors.newFixedThreadPool(
+				workerCount,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+								r.run();
+							}
+						}, "AudioDecoder");
+					}
+				});
+		} else {
+			workers = null;
+		}
+
+		Globals.logInfo(this, String.format(
+			"Decoding with %d worker threads",
+			workerCount));
+	}
+
+	/**
+	 * @return Average decode time of a frame in microseconds.
+	 */
+	public long getAverageDecodeTime() {
+		final long frames = decodedFrames.get();
+		return frames == 0 ? 0 : decodeNanos.get() / frames / 1000;
+	}
+
+	public long getDecodedFrames() {
+		return decodedFrames.get();
+	}
+
+	public int getMissedDeadlines() {
+		return missedDeadlines;
+	}
+
+	/**
+	 * @return True if the frames are decoded outside the audio thread.
+	 */
+	public boolean isPipelined() {
+		return workers != null;
+	}
+
+	public void logStats(final Object source) {
+		Globals.logInfo(source, String.format(
+			"Decoded %d frames, %d us per frame, %d missed deadlines",
+			getDecodedFrames(),
+			getAverageDecodeTime(),
+			getMissedDeadlines()));
+	}
+
+	/**
+	 * Counts a frame the mixer had to skip. Audio thread only.
+	 */
+	public void missedDeadline() {
+		missedDeadlines++;
+	}
+
+	public void recordDecode(final long nanos) {
+		decodeNanos.addAndGet(nanos);
+		decodedFrames.incrementAndGet();
+	}
+
+	/**
+	 * Tops up the user's decoded frames unless a decode is already running
+	 * for the user.
+	 */
+	public void request(final AudioUser user) {
+		if (!user.beginDecode()) {
+			return;
+		}
+
+		if (workers == null) {
+			user.decodeTask.run();
+		} else {
+			workers.execute(user.decodeTask);
+		}
+	}
+
+	/**
+	 * Stops the workers and waits for running decodes to finish. A decode
+	 * may still be running if they don't stop in time, so users must only
+	 * be freed once their decode flag can be taken.
+	 */
+	public void shutdown() throws InterruptedException {
+		if (workers != null) {
+			workers.shutdown();
+			if (!workers.awaitTermination(
+				SHUTDOWN_TIMEOUT_MS,
+				TimeUnit.MILLISECONDS)) {
+				Globals.logWarn(this, "Decoder workers didn't stop in time");
+			}
+		}
+	}
+}
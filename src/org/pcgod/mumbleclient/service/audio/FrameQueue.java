@@ -0,0 +1,99 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.jni.Native;
+
+/**
+ * Bounded single producer, single consumer queue of encoded frames.
+ *
+ * The slots and their data arrays are allocated up front and reused, so
+ * queueing a frame doesn't allocate. The producer fills the slot returned by
+ * claim() and makes it visible with publish(). The consumer reads the slot
+ * returned by peek() and hands it back with remove().
+ *
+ * Neither side takes a lock. The head and tail indices are each written by
+ * one side only, and the volatile writes publish the slot contents.
+ */
+class FrameQueue {
+	/**
+	 * Size of the slot data arrays. The voice packet frame header has 7 bits
+	 * for the length.
+	 */
+	private static final int MAX_FRAME_SIZE = 128;
+
+	private final Native.JitterBufferPacket[] slots;
+	private final int mask;
+
+	/**
+	 * Index of the next slot to read. Written by the consumer.
+	 */
+	private volatile int head;
+
+	/**
+	 * Index of the next slot to write. Written by the producer.
+	 */
+	private volatile int tail;
+
+	/**
+	 * @param capacity
+	 *            Number of slots, must be a power of two
+	 */
+	public FrameQueue(final int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two");
+		}
+
+		slots = new Native.JitterBufferPacket[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Native.JitterBufferPacket();
+			slots[i].data = new byte[MAX_FRAME_SIZE];
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Producer only.
+	 *
+	 * @return The next free slot or null if the queue is full.
+	 */
+	public Native.JitterBufferPacket claim() {
+		final int t = tail;
+		if (t - head == slots.length) {
+			return null;
+		}
+		return slots[t & mask];
+	}
+
+	/**
+	 * @return True if there are no published frames.
+	 */
+	public boolean isEmpty() {
+		return head == tail;
+	}
+
+	/**
+	 * Consumer only.
+	 *
+	 * @return The oldest published frame or null if the queue is empty.
+	 */
+	public Native.JitterBufferPacket peek() {
+		final int h = head;
+		if (h == tail) {
+			return null;
+		}
+		return slots[h & mask];
+	}
+
+	/**
+	 * Producer only. Publishes the slot returned by the last claim().
+	 */
+	public void publish() {
+		tail = tail + 1;
+	}
+
+	/**
+	 * Consumer only. Releases the slot returned by the last peek().
+	 */
+	public void remove() {
+		head = head + 1;
+	}
+}
@@ -1,11 +1,32 @@
 package org.pcgod.mumbleclient.service.audio;
 
+import org.pcgod.mumbleclient.jni.Native;
+
+/**
+ * Java port of the Speex jitter buffer.
+ *
+ * Works like Native.jitter_buffer_* without crossing JNI and copying the
+ * packet structs on every call. The packet data is copied into per slot
+ * arrays which are reused, so put() stops allocating once the arrays have
+ * grown to the packet size.
+ *
+ * Speex scans all JITTER_MAX_BUFFER_SIZE slots for every put() and get().
+ * Here the used slots are kept in an index ordered by timestamp and then by
+ * slot. When several packets match, the search returns the same slot the
+ * Speex scan would, so both produce the same output. The index compares
+ * timestamps as plain ints, which agrees with the Speex wrap-around compares
+ * as long as the buffered timestamps are less than 2^31 apart.
+ *
+ * JitterBufferTest in the tests project replays packet traces through this
+ * and the native buffer and compares every result. Until it has passed on a
+ * device this backend isn't offered in the preferences.
+ */
 class JitterBuffer {
-	private class TimingBuffer {
+	private static class TimingBuffer {
 		int filled;
 		int curr_count;
-		int[] timing = new int[MAX_TIMINGS];
-		short[] counts = new short[MAX_TIMINGS];
+		final int[] timing = new int[MAX_TIMINGS];
+		final short[] counts = new short[MAX_TIMINGS];
 
 		public void add(final short timing_) {
 			if (filled >= MAX_TIMINGS && timing_ >= timing[filled - 1]) {
@@ -33,14 +54,46 @@ class JitterBuffer {
 				++filled;
 			}
 		}
+
+		public void clear() {
+			filled = 0;
+			curr_count = 0;
+		}
 	}
 
+	public static final int JITTER_BUFFER_OK = 0;
+	public static final int JITTER_BUFFER_MISSING = 1;
+	public static final int JITTER_BUFFER_INSERTION = 2;
+
 	private static final int MAX_TIMINGS = 40;
 	private static final int JITTER_MAX_BUFFER_SIZE = 100;
 	private static final int TOP_DELAY = 40;
 	private static final int MAX_BUFFERS = 3;
+	/** Initial size of the slot data arrays, enough for a CELT frame */
+	private static final int MIN_DATA_SIZE = 128;
+
+	private static boolean GE32(final int a, final int b) {
+		return a - b >= 0;
+	}
+
+	private static boolean GT32(final int a, final int b) {
+		return a - b > 0;
+	}
 
-	private int timestamp;
+	private static boolean LE32(final int a, final int b) {
+		return a - b <= 0;
+	}
+
+	private static boolean LT32(final int a, final int b) {
+		return a - b < 0;
+	}
+
+	private static int ROUND_DOWN(final int x, final int step) {
+		return x < 0 ? (x - step + 1) / step * step : x / step * step;
+	}
+
+	/** Current timestamp */
+	private int pointer_timestamp;
 	/** Estimated time the next get() will be called */
 	private int next_stop;
 
@@ -50,14 +103,26 @@ class JitterBuffer {
 	 */
 	private int buffered;
 
-	/** Packets stored in the buffer */
-	private final JitterBufferPacket[] packets = new JitterBufferPacket[JITTER_MAX_BUFFER_SIZE];
+	// Packets stored in the buffer, one entry per slot.
+	private final byte[][] data = new byte[JITTER_MAX_BUFFER_SIZE][];
+	private final int[] len = new int[JITTER_MAX_BUFFER_SIZE];
+	private final int[] timestamps = new int[JITTER_MAX_BUFFER_SIZE];
+	private final int[] spans = new int[JITTER_MAX_BUFFER_SIZE];
+	private final short[] sequences = new short[JITTER_MAX_BUFFER_SIZE];
+	private final int[] user_data = new int[JITTER_MAX_BUFFER_SIZE];
 	/**
 	 * Packet arrival time (0 means it was late, even though it's a valid
 	 * timestamp)
 	 */
 	private final int[] arrival = new int[JITTER_MAX_BUFFER_SIZE];
 
+	/** Bit per used slot, slots 0-63 in the first word and the rest in the second */
+	private final long[] used = new long[2];
+	/** Used slots ordered by timestamp, then by slot */
+	private final int[] order = new int[JITTER_MAX_BUFFER_SIZE];
+	/** Number of used slots */
+	private int count;
+
 	/** Size of the steps when adjusting buffering (timestamp units) */
 	private final int delay_step;
 	/** Size of the packet loss concealment "units" */
@@ -72,7 +137,11 @@ class JitterBuffer {
 	private boolean auto_adjust;
 
 	/** Storing arrival time of latest frames so we can compute some stats */
-	private TimingBuffer[] timeBuffers = new TimingBuffer[MAX_BUFFERS];
+	private final TimingBuffer[] tb = new TimingBuffer[MAX_BUFFERS];
+	/** The timing buffers ordered from the newest to the oldest */
+	private final TimingBuffer[] timeBuffers = new TimingBuffer[MAX_BUFFERS];
+	/** Read positions used by computeOptimalDelay() */
+	private final int[] pos = new int[MAX_BUFFERS];
 
 	/** Total window over which the late frames are counted */
 	private int window_size;
@@ -91,108 +160,92 @@ class JitterBuffer {
 		concealment_size = step_size;
 		auto_adjust = true;
 
+		for (int i = 0; i < MAX_BUFFERS; ++i) {
+			tb[i] = new TimingBuffer();
+		}
+
 		setMaxLateRate(4);
 		reset();
 	}
 
-	public JitterBufferPacket get(final int desired_span) {
+	/**
+	 * Gets the packet for the next desired_span samples.
+	 *
+	 * @param packet
+	 *            Receives the packet. data must be allocated by the caller
+	 *            and len set to its size.
+	 * @param start_offset
+	 *            Receives the offset of the packet to the current timestamp,
+	 *            may be null.
+	 * @return JITTER_BUFFER_OK if a packet was returned, otherwise
+	 *         JITTER_BUFFER_MISSING or JITTER_BUFFER_INSERTION.
+	 */
+	public int get(
+		final Native.JitterBufferPacket packet,
+		int desired_span,
+		final int[] start_offset) {
+		if (start_offset != null) {
+			start_offset[0] = 0;
+		}
+
 		if (reset_state) {
-			boolean found = false;
-			int oldest = 0;
-			for (int i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] != null &&
-						(!found || packets[i].timestamp < oldest)) {
-					oldest = packets[i].timestamp;
-					found = true;
-				}
-			}
-			if (found) {
+			if (count > 0) {
+				final int oldest = timestamps[order[0]];
 				reset_state = false;
-				timestamp = oldest;
+				pointer_timestamp = oldest;
 				next_stop = oldest;
 			} else {
-//				Log.i("mumble.jb", "JITTER_BUFFER_MISSING");
-				return null;
+				packet.timestamp = 0;
+				packet.span = interp_requested;
+				return JITTER_BUFFER_MISSING;
 			}
 		}
 
 		if (interp_requested != 0) {
-			timestamp += interp_requested;
-			buffered = interp_requested - desired_span;
+			packet.timestamp = pointer_timestamp;
+			packet.span = interp_requested;
+
+			pointer_timestamp += interp_requested;
+			packet.len = 0;
+
 			interp_requested = 0;
-//			Log
-//					.i("mumble.jb",
-//							"JITTER_BUFFER_INSERTION - Deferred interpolate");
-			return null;
-		}
-
-		int i;
-		for (i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-			if (packets[i] != null &&
-					packets[i].timestamp == timestamp &&
-					packets[i].timestamp + packets[i].span >= timestamp +
-							desired_span) {
-				break;
-			}
-		}
 
-		if (i == JITTER_MAX_BUFFER_SIZE) {
-			for (i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] != null &&
-						packets[i].timestamp <= timestamp &&
-						packets[i].timestamp + packets[i].span >= timestamp +
-								desired_span) {
-					break;
-				}
-			}
-		}
+			buffered = packet.span - desired_span;
 
-		if (i == JITTER_MAX_BUFFER_SIZE) {
-			for (i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] != null && packets[i].timestamp <= timestamp &&
-						packets[i].timestamp + packets[i].span > timestamp) {
-					break;
-				}
-			}
+			return JITTER_BUFFER_INSERTION;
 		}
 
-		if (i == JITTER_MAX_BUFFER_SIZE) {
-			boolean found = false;
-			int best_time = 0;
-			int best_span = 0;
-			int besti = 0;
-			for (i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] != null &&
-						packets[i].timestamp < timestamp + desired_span &&
-						packets[i].timestamp >= timestamp) {
-					if (!found ||
-							packets[i].timestamp < best_time ||
-							(packets[i].timestamp == best_time && packets[i].span > best_span)) {
-						best_time = packets[i].timestamp;
-						best_span = packets[i].span;
-						besti = i;
-						found = true;
-					}
-				}
+		final int i = find(desired_span);
+		if (i != -1) {
+			lost = 0;
+			if (arrival[i] != 0) {
+				updateTimings(timestamps[i] - arrival[i] - buffer_margin);
 			}
 
-			if (found) {
-				i = besti;
+			if (len[i] <= packet.len) {
+				packet.len = len[i];
 			}
-		}
+			System.arraycopy(data[i], 0, packet.data, 0, packet.len);
 
-		if (i != JITTER_MAX_BUFFER_SIZE) {
-			lost = 0;
-			if (arrival[i] != 0) {
-				updateTimings((short) (packets[i].timestamp - arrival[i] - buffer_margin));
+			final int offset = timestamps[i] - pointer_timestamp;
+			if (start_offset != null) {
+				start_offset[0] = offset;
 			}
 
-			final JitterBufferPacket packet = packets[i];
-			packets[i] = null;
-			timestamp = packet.timestamp + packet.span;
+			packet.timestamp = timestamps[i];
+			packet.span = spans[i];
+			packet.sequence = sequences[i];
+			packet.user_data = user_data[i];
+
+			pointer_timestamp = timestamps[i] + spans[i];
+
 			buffered = packet.span - desired_span;
+			if (start_offset != null) {
+				buffered += offset;
+			}
 
-			return packet;
+			remove(i);
+			return JITTER_BUFFER_OK;
 		}
 
 		++lost;
@@ -202,47 +255,52 @@ class JitterBuffer {
 		if (opt < 0) {
 			shiftTimings((short) -opt);
 
-			buffered = -opt - desired_span;
-//			Log.i("mumble.jb",
-//					"JITTER_BUFFER_INSERTION - Forced to interpolate");
-		} else {
-			final int tmp_desired_span = Math.min(desired_span,
-					concealment_size);
-			timestamp += tmp_desired_span;
-			buffered = tmp_desired_span - tmp_desired_span;
-//			Log.i("mumble.jb", "JITTER_BUFFER_MISSING - Normal loss");
+			packet.timestamp = pointer_timestamp;
+			packet.span = -opt;
+			packet.len = 0;
+
+			buffered = packet.span - desired_span;
+			return JITTER_BUFFER_INSERTION;
 		}
-		return null;
+
+		packet.timestamp = pointer_timestamp;
+
+		desired_span = ROUND_DOWN(desired_span, concealment_size);
+		packet.span = desired_span;
+		pointer_timestamp += desired_span;
+		packet.len = 0;
+
+		buffered = packet.span - desired_span;
+		return JITTER_BUFFER_MISSING;
 	}
 
 	public int getAvailable() {
-		int count = 0;
-		for (int i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-			if (packets[i] != null && timestamp <= packets[i].timestamp) {
-				++count;
-			}
-		}
-		return count;
+		return count - lowerBound(pointer_timestamp);
 	}
 
 	public int getTimestamp() {
-		return timestamp;
+		return pointer_timestamp;
 	}
 
-	public void put(final JitterBufferPacket packet) {
+	public void put(final Native.JitterBufferPacket packet) {
 		boolean late = false;
 
 		if (!reset_state) {
-			for (int i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] != null &&
-						packets[i].timestamp + packets[i].span <= timestamp) {
-					packets[i] = null;
+			// Remove old packets that weren't played. Only the packets at or
+			// before the current timestamp can have ended.
+			int p = 0;
+			while (p < count && LE32(timestamps[order[p]], pointer_timestamp)) {
+				final int i = order[p];
+				if (LE32(timestamps[i] + spans[i], pointer_timestamp)) {
+					remove(i);
+				} else {
+					++p;
 				}
 			}
 		}
 
-		if (!reset_state && packet.timestamp <= next_stop) {
-			updateTimings((short) (packet.timestamp - next_stop - buffer_margin));
+		if (!reset_state && LT32(packet.timestamp, next_stop)) {
+			updateTimings(packet.timestamp - next_stop - buffer_margin);
 			late = true;
 		}
 
@@ -251,50 +309,49 @@ class JitterBuffer {
 		}
 
 		if (reset_state ||
-				packet.timestamp + packet.span + delay_step >= timestamp) {
-			int i;
-			for (i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-				if (packets[i] == null) {
-					break;
-				}
-			}
-			if (i == JITTER_MAX_BUFFER_SIZE) {
-				int earliest = packets[0].timestamp;
-				i = 0;
-				for (int j = 0; j < JITTER_MAX_BUFFER_SIZE; ++j) {
-					if (packets[i] != null || packets[j].timestamp < earliest) {
-						earliest = packets[j].timestamp;
-						i = j;
-					}
-				}
-				packets[i] = null;
+			GE32(packet.timestamp + packet.span + delay_step, pointer_timestamp)) {
+			int i = freeSlot();
+			if (i == -1) {
+				// Make room by discarding the earliest packet.
+				i = order[0];
+				remove(i);
 			}
 
-			packets[i] = packet;
+			if (data[i] == null || data[i].length < packet.len) {
+				data[i] = new byte[Math.max(packet.len, MIN_DATA_SIZE)];
+			}
+			System.arraycopy(packet.data, 0, data[i], 0, packet.len);
+			len[i] = packet.len;
+			timestamps[i] = packet.timestamp;
+			spans[i] = packet.span;
+			sequences[i] = packet.sequence;
+			user_data[i] = packet.user_data;
 
 			if (reset_state || late) {
 				arrival[i] = 0;
 			} else {
 				arrival[i] = next_stop;
 			}
+
+			insert(i);
 		}
 	}
 
 	public void reset() {
-		for (int i = 0; i < JITTER_MAX_BUFFER_SIZE; ++i) {
-			packets[i] = null;
-		}
+		used[0] = 0;
+		used[1] = 0;
+		count = 0;
 
-		timestamp = 0;
+		pointer_timestamp = 0;
 		next_stop = 0;
 		reset_state = true;
 		lost = 0;
 		buffered = 0;
 		auto_tradeoff = 32000;
 
-		timeBuffers = new TimingBuffer[MAX_BUFFERS];
 		for (int i = 0; i < MAX_BUFFERS; ++i) {
-			timeBuffers[i] = new TimingBuffer();
+			tb[i].clear();
+			timeBuffers[i] = tb[i];
 		}
 	}
 
@@ -313,10 +370,9 @@ class JitterBuffer {
 		}
 
 		if (buffered >= 0) {
-			next_stop = timestamp - buffered;
+			next_stop = pointer_timestamp - buffered;
 		} else {
-			next_stop = timestamp;
-//			Log.w("mumble.jb", "jitter buffer sees negative buffering, your code might be broken. Value is " + buffered);
+			next_stop = pointer_timestamp;
 		}
 		buffered = 0;
 	}
@@ -332,7 +388,7 @@ class JitterBuffer {
 
 		if (opt != 0) {
 			shiftTimings((short) -opt);
-			timestamp += opt;
+			pointer_timestamp += opt;
 			if (opt < 0) {
 				interp_requested = -opt;
 			}
@@ -340,14 +396,27 @@ class JitterBuffer {
 		return opt;
 	}
 
+	/**
+	 * Orders slots by timestamp, then by slot.
+	 */
+	private int compare(final int a, final int b) {
+		final int timestampA = timestamps[a];
+		final int timestampB = timestamps[b];
+		if (timestampA != timestampB) {
+			return timestampA < timestampB ? -1 : 1;
+		}
+		return a - b;
+	}
+
 	private short computeOptimalDelay() {
 		short opt = 0;
 		int best_cost = 0x7fffffff;
+		int late = 0;
 		boolean penalty_taken = false;
 
 		int tot_count = 0;
 		for (int i = 0; i < MAX_BUFFERS; ++i) {
-			tot_count += timeBuffers[i].curr_count;
+			tot_count += tb[i].curr_count;
 		}
 		if (tot_count == 0) {
 			return 0;
@@ -360,7 +429,6 @@ class JitterBuffer {
 			late_factor = auto_tradeoff * window_size / tot_count;
 		}
 
-		final int[] pos = new int[MAX_BUFFERS];
 		for (int i = 0; i < MAX_BUFFERS; ++i) {
 			pos[i] = 0;
 		}
@@ -371,20 +439,18 @@ class JitterBuffer {
 			int next = -1;
 			int latest = 32767;
 			for (int j = 0; j < MAX_BUFFERS; ++j) {
-				if (pos[j] < timeBuffers[j].filled &&
-						timeBuffers[j].timing[pos[j]] < latest) {
+				if (pos[j] < tb[j].filled && tb[j].timing[pos[j]] < latest) {
 					next = j;
-					latest = timeBuffers[j].timing[pos[j]];
+					latest = tb[j].timing[pos[j]];
 				}
 			}
 
-			int late = 0;
 			if (next != -1) {
 				if (i == 0) {
 					worst = latest;
 				}
 				best = latest;
-				latest = Math.min(latest, delay_step);
+				latest = ROUND_DOWN(latest, delay_step);
 				++pos[next];
 				final int cost = (int) (-latest + late_factor * late);
 
@@ -413,6 +479,134 @@ class JitterBuffer {
 		return opt;
 	}
 
+	/**
+	 * Finds the packet that fits the next desired_span samples best.
+	 *
+	 * @return The slot or -1 if there is none.
+	 */
+	private int find(final int desired_span) {
+		final int end = pointer_timestamp + desired_span;
+		final int first = lowerBound(pointer_timestamp);
+
+		// A packet with the right timestamp spanning the whole chunk.
+		for (int p = first; p < count &&
+							timestamps[order[p]] == pointer_timestamp; ++p) {
+			final int i = order[p];
+			if (GE32(timestamps[i] + spans[i], end)) {
+				return i;
+			}
+		}
+
+		// An older packet that still spans the whole chunk. Speex takes the
+		// lowest slot that matches, not the closest timestamp.
+		int found = -1;
+		final int older = upperBound(pointer_timestamp);
+		for (int p = 0; p < older; ++p) {
+			final int i = order[p];
+			if (GE32(timestamps[i] + spans[i], end) && (found == -1 || i < found)) {
+				found = i;
+			}
+		}
+		if (found != -1) {
+			return found;
+		}
+
+		// An older packet that spans part of the chunk.
+		for (int p = 0; p < older; ++p) {
+			final int i = order[p];
+			if (GT32(timestamps[i] + spans[i], pointer_timestamp) &&
+				(found == -1 || i < found)) {
+				found = i;
+			}
+		}
+		if (found != -1) {
+			return found;
+		}
+
+		// The earliest packet starting within the chunk, the longest one if
+		// several start at the same time.
+		if (first < count && LT32(timestamps[order[first]], end)) {
+			found = order[first];
+			for (int p = first + 1; p < count &&
+									timestamps[order[p]] == timestamps[found]; ++p) {
+				if (GT32(spans[order[p]], spans[found])) {
+					found = order[p];
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return The lowest free slot or -1 if the buffer is full.
+	 */
+	private int freeSlot() {
+		if (~used[0] != 0) {
+			return Long.numberOfTrailingZeros(~used[0]);
+		}
+		final int i = 64 + Long.numberOfTrailingZeros(~used[1]);
+		return i < JITTER_MAX_BUFFER_SIZE ? i : -1;
+	}
+
+	/**
+	 * Adds the slot to the index.
+	 */
+	private void insert(final int slot) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (compare(order[mid], slot) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		System.arraycopy(order, lo, order, lo + 1, count - lo);
+		order[lo] = slot;
+		++count;
+		used[slot >> 6] |= 1L << (slot & 63);
+	}
+
+	/**
+	 * @return Position of the first packet with a timestamp at or after
+	 *         timestamp.
+	 */
+	private int lowerBound(final int timestamp) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (timestamps[order[mid]] < timestamp) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Removes the slot from the index.
+	 */
+	private void remove(final int slot) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (compare(order[mid], slot) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		System.arraycopy(order, lo + 1, order, lo, count - lo - 1);
+		--count;
+		used[slot >> 6] &= ~(1L << (slot & 63));
+	}
+
 	private void shiftTimings(final short amount) {
 		for (int i = 0; i < MAX_BUFFERS; ++i) {
 			for (int j = 0; j < timeBuffers[i].filled; ++j) {
@@ -421,16 +615,39 @@ class JitterBuffer {
 		}
 	}
 
-	private void updateTimings(final short timing) {
+	/**
+	 * @return Position of the first packet with a timestamp after timestamp.
+	 */
+	private int upperBound(final int timestamp) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (timestamps[order[mid]] <= timestamp) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private void updateTimings(int timing) {
+		if (timing < -32767) {
+			timing = -32767;
+		}
+		if (timing > 32767) {
+			timing = 32767;
+		}
+
 		if (timeBuffers[0].curr_count >= subwindow_size) {
 			final TimingBuffer tmp = timeBuffers[MAX_BUFFERS - 1];
 			for (int i = MAX_BUFFERS - 1; i >= 1; --i) {
 				timeBuffers[i] = timeBuffers[i - 1];
 			}
 			timeBuffers[0] = tmp;
-			timeBuffers[0].curr_count = 0;
-			timeBuffers[0].filled = 0;
+			timeBuffers[0].clear();
 		}
-		timeBuffers[0].add(timing);
+		timeBuffers[0].add((short) timing);
 	}
 }
@@ -0,0 +1,229 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+
+/**
+ * Owns the output AudioTrack and sizes its buffer by the underruns seen.
+ *
+ * The track starts with the minimum buffer the device reports, rounded up to
+ * whole frames. An underrun is detected when the playback head has caught up
+ * with everything written while the output was being written continuously.
+ * Two underruns close to each other grow the buffer by a step, a long run
+ * without underruns shrinks it by one when the output goes idle. Since the
+ * buffer size of an AudioTrack is fixed, a resize replaces the track. A
+ * shrink waits until the old track has played everything written to it so
+ * the end of the last words isn't cut off.
+ *
+ * Only for use in the audio thread, except for getLatency.
+ */
+class OutputLatencyManager {
+	private static final int FRAME_BYTES = MumbleProtocol.FRAME_SIZE * 2;
+	/** Buffer is never grown past this many minimum buffers */
+	private static final int MAX_BUFFERS = 4;
+	/** Frames within which a second underrun grows the buffer, 10 s */
+	private static final int GROW_WINDOW = 1000;
+	/** Frames without underruns after which the buffer shrinks, 5 min */
+	private static final int SHRINK_AFTER = 30000;
+
+	private final int stream;
+	private final int minBufferSize;
+	private final int maxBufferSize;
+	private final int stepSize;
+
+	private AudioTrack at;
+	/** Track buffer size in bytes, a multiple of FRAME_BYTES */
+	private int bufferSize;
+	private volatile int latency;
+
+	private boolean playing;
+	/** Bytes written while waiting for the buffer to fill */
+	private int buffered;
+	/** Samples written to the current track */
+	private int written;
+	/** True while frames have been written without a pause */
+	private boolean continuous;
+
+	private int underruns;
+	private int framesSinceUnderrun = GROW_WINDOW;
+	/** Set when the buffer should shrink once the track has drained */
+	private boolean shrinkPending;
+
+	private static int roundToFrames(final int bytes) {
+		return (bytes + FRAME_BYTES - 1) / FRAME_BYTES * FRAME_BYTES;
+	}
+
+	public OutputLatencyManager(final int stream) {
+		this.stream = stream;
+
+		final int deviceMinimum = AudioTrack.getMinBufferSize(
+			MumbleProtocol.SAMPLE_RATE,
+			AudioFormat.CHANNEL_CONFIGURATION_MONO,
+			AudioFormat.ENCODING_PCM_16BIT);
+
+		minBufferSize = roundToFrames(deviceMinimum);
+		maxBufferSize = roundToFrames(deviceMinimum * MAX_BUFFERS);
+		stepSize = roundToFrames(deviceMinimum / 2);
+
+		at = createTrack(minBufferSize);
+		setBufferSize(minBufferSize);
+	}
+
+	/**
+	 * @return Latency of the output buffer in milliseconds.
+	 */
+	public int getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return Underruns detected since the output was created.
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * Marks the end of continuous output. Starts the playback of a buffer
+	 * that didn't fill up and schedules a shrink if the buffer has been free
+	 * of underruns for long enough.
+	 */
+	public void idle() {
+		continuous = false;
+
+		if (!playing && buffered > 0) {
+			startPlayback();
+		}
+
+		if (framesSinceUnderrun >= SHRINK_AFTER && bufferSize > minBufferSize) {
+			framesSinceUnderrun = 0;
+			shrinkPending = true;
+		}
+		shrinkIfDrained();
+	}
+
+	public void pause() {
+		at.pause();
+		playing = false;
+		buffered = 0;
+	}
+
+	public void release() {
+		at.flush();
+		at.stop();
+		at.release();
+	}
+
+	/**
+	 * Writes one frame, blocking while the track buffer is full.
+	 */
+	public void write(final short[] frame) {
+		if (!continuous) {
+			// Silence since the last frame may have drained the track.
+			shrinkIfDrained();
+		}
+
+		if (playing && continuous) {
+			// The head only reaches the written position if the track ran
+			// out of data.
+			if (written - at.getPlaybackHeadPosition() <= 0) {
+				underrun();
+			} else if (framesSinceUnderrun < SHRINK_AFTER) {
+				framesSinceUnderrun++;
+			}
+		}
+		continuous = true;
+
+		at.write(frame, 0, MumbleProtocol.FRAME_SIZE);
+		written += MumbleProtocol.FRAME_SIZE;
+
+		// Make sure we are playing when the buffer is full.
+		if (!playing) {
+			buffered += FRAME_BYTES;
+			if (buffered >= bufferSize) {
+				startPlayback();
+			}
+		}
+	}
+
+	private AudioTrack createTrack(final int size) {
+		return new AudioTrack(
+			stream,
+			MumbleProtocol.SAMPLE_RATE,
+			AudioFormat.CHANNEL_CONFIGURATION_MONO,
+			AudioFormat.ENCODING_PCM_16BIT,
+			size,
+			AudioTrack.MODE_STREAM);
+	}
+
+	/**
+	 * Replaces the track with one of the given buffer size. The new track
+	 * fills its buffer before it starts playing.
+	 */
+	private void resize(final int size) {
+		final AudioTrack track = createTrack(size);
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			Globals.logWarn(this, String.format(
+				"Could not create a %d byte AudioTrack, keeping %d bytes",
+				size,
+				bufferSize));
+			track.release();
+			return;
+		}
+
+		at.stop();
+		at.release();
+		at = track;
+		playing = false;
+		continuous = false;
+		buffered = 0;
+		written = 0;
+
+		setBufferSize(size);
+		Globals.logInfo(this, String.format(
+			"Output buffer resized to %d bytes, %d ms. %d underruns so far.",
+			size,
+			latency,
+			underruns));
+	}
+
+	private void setBufferSize(final int size) {
+		bufferSize = size;
+		latency = size / 2 * 1000 / MumbleProtocol.SAMPLE_RATE;
+	}
+
+	/**
+	 * Shrinks the buffer if a shrink is pending and the track has played
+	 * everything written to it. Otherwise the shrink waits for a later idle
+	 * period.
+	 */
+	private void shrinkIfDrained() {
+		if (!shrinkPending || written - at.getPlaybackHeadPosition() > 0) {
+			return;
+		}
+		shrinkPending = false;
+		resize(Math.max(minBufferSize, bufferSize - stepSize));
+	}
+
+	private void startPlayback() {
+		at.play();
+		playing = true;
+		buffered = 0;
+
+		Globals.logInfo(this, "Enough data buffered. Starting audio.");
+	}
+
+	private void underrun() {
+		underruns++;
+		final boolean repeated = framesSinceUnderrun < GROW_WINDOW;
+		framesSinceUnderrun = 0;
+		shrinkPending = false;
+
+		if (repeated && bufferSize < maxBufferSize) {
+			resize(Math.min(maxBufferSize, bufferSize + stepSize));
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.LinkStats;
+
+/**
+ * Chooses the number of frames sent in each voice packet.
+ *
+ * Small packets keep the latency down on a fast link. Larger ones cut the
+ * per-packet header overhead and the packet rate, which matters on slow or
+ * congested links, when tunnelling over TCP and when the server limits the
+ * bandwidth. The choice follows the UDP round trip time and the loss of the
+ * packets from the server, moves up at once when the link gets worse and
+ * down only after the link has been better for a while.
+ *
+ * Only for use in the record thread.
+ */
+class PacketSizeController {
+	/** Frames per packet, 10, 20, 40 and 60 ms like the desktop client */
+	private static final int[] CHOICES = { 1, 2, 4, 6 };
+
+	/** Bytes of IP, UDP, crypt and voice headers per packet */
+	private static final int UDP_OVERHEAD = 20 + 8 + 4 + 1 + 3;
+	/** Bytes of IP, TCP, TLS and tunnel headers per packet */
+	private static final int TCP_OVERHEAD = 20 + 20 + 29 + 6 + 1 + 3;
+
+	/** Below this loss the link counts as good */
+	private static final float LOSS_HIGH = 0.03f;
+	/** Above this loss the packets are always the largest */
+	private static final float LOSS_SEVERE = 0.10f;
+	/** Packets needed for a loss estimate */
+	private static final int LOSS_MIN_PACKETS = 50;
+
+	/** Updates in a row that must allow smaller packets before they're used */
+	private static final int SHRINK_UPDATES = 5;
+
+	private final LinkStats link;
+	private int choice;
+	private int shrinkVotes;
+
+	private int lastGood;
+	private int lastLate;
+	private int lastLost;
+	private float loss;
+	private boolean lossSampled;
+
+	public PacketSizeController(final LinkStats link) {
+		this.link = link;
+		lastGood = link.getGood();
+		lastLate = link.getLate();
+		lastLost = link.getLost();
+		choice = link.isTunnelling() ? CHOICES.length - 1 : 1;
+	}
+
+	/**
+	 * Bits per second sent with the given packet size, headers included.
+	 *
+	 * @param framesPerPacket
+	 *            Frames in a packet.
+	 * @param frameBytes
+	 *            Encoded size of a frame.
+	 * @param tunnelling
+	 *            True for TCP headers.
+	 */
+	public static int getBitrate(
+		final int framesPerPacket,
+		final int frameBytes,
+		final boolean tunnelling) {
+		final int overhead = tunnelling ? TCP_OVERHEAD : UDP_OVERHEAD;
+		final int packetBytes = overhead + framesPerPacket * (frameBytes + 1);
+		return packetBytes * 8 * 100 / framesPerPacket;
+	}
+
+	public int getFramesPerPacket() {
+		return CHOICES[choice];
+	}
+
+	/**
+	 * @return Loss of the packets from the server in the last update.
+	 */
+	public float getLoss() {
+		return loss;
+	}
+
+	/**
+	 * @return True if the last update took a new loss sample. Otherwise
+	 *         getLoss() is the value from an earlier update.
+	 */
+	public boolean isLossSampled() {
+		return lossSampled;
+	}
+
+	/**
+	 * Checks the link and changes the packet size if needed. Called about
+	 * once a second between packets.
+	 *
+	 * @param frameBytes
+	 *            Encoded size of a frame.
+	 * @return True if the packet size changed.
+	 */
+	public boolean update(final int frameBytes) {
+		updateLoss();
+
+		final boolean tunnelling = link.isTunnelling();
+		final int rtt = link.getUdpRtt();
+		final int maxBandwidth = link.getMaxBandwidth();
+
+		int wanted;
+		if (tunnelling) {
+			wanted = 3;
+		} else if (rtt < 0) {
+			wanted = 1;
+		} else if (rtt < 30) {
+			wanted = 0;
+		} else if (rtt < 80) {
+			wanted = 1;
+		} else if (rtt < 200) {
+			wanted = 2;
+		} else {
+			wanted = 3;
+		}
+
+		if (loss >= LOSS_SEVERE) {
+			wanted = CHOICES.length - 1;
+		} else if (loss >= LOSS_HIGH) {
+			wanted = Math.min(wanted + 1, CHOICES.length - 1);
+		}
+
+		while (maxBandwidth > 0 && wanted < CHOICES.length - 1 &&
+			   getBitrate(CHOICES[wanted], frameBytes, tunnelling) > maxBandwidth) {
+			wanted++;
+		}
+
+		if (wanted < choice && ++shrinkVotes < SHRINK_UPDATES) {
+			return false;
+		}
+		shrinkVotes = 0;
+		if (wanted == choice) {
+			return false;
+		}
+
+		Globals.logInfo(this, String.format(
+			"%d frames per packet: RTT %d ms, loss %.1f%%, %s, max %d bit/s",
+			CHOICES[wanted],
+			rtt,
+			loss * 100,
+			tunnelling ? "TCP" : "UDP",
+			maxBandwidth));
+		choice = wanted;
+		return true;
+	}
+
+	private void updateLoss() {
+		lossSampled = false;
+		final int good = link.getGood();
+		final int late = link.getLate();
+		final int lost = link.getLost();
+		final int received = good - lastGood + late - lastLate;
+		final int missing = lost - lastLost;
+
+		// Keep the estimate until there's traffic enough for a new one.
+		if (received + missing < LOSS_MIN_PACKETS) {
+			return;
+		}
+
+		loss = missing <= 0 ? 0 : (float) missing / (received + missing);
+		lossSampled = true;
+		lastGood = good;
+		lastLate = late;
+		lastLost = lost;
+	}
+}
@@ -0,0 +1,68 @@
+package org.pcgod.mumbleclient.service.audio;
+
+/**
+ * Chooses the playout delay for one speaker.
+ *
+ * Estimates the network jitter from the packet arrival times the same way
+ * as RTP (RFC 3550): the difference between the arrival spacing and the
+ * sequence spacing of two packets is smoothed with a gain of 1/16. The target
+ * delay covers three times the jitter, which keeps late frames rare without
+ * buffering more than needed on a good link.
+ *
+ * Not thread safe, only the decoding thread uses it.
+ */
+class PlayoutController {
+	/** Length of a frame in milliseconds */
+	private static final int FRAME_MS = 10;
+	/** Arrival gap after which the next packet isn't compared to the last */
+	private static final int RESET_GAP_MS = 1000;
+	/**
+	 * Jitter assumed before any packets arrived. Gives the 5 frame margin the
+	 * jitter buffer used to be fixed at.
+	 */
+	private static final int INITIAL_JITTER_MS = 15;
+
+	public static final int MIN_TARGET = 1;
+	public static final int MAX_TARGET = 10;
+
+	/** Jitter estimate in 1/16 ms */
+	private int jitter = INITIAL_JITTER_MS << 4;
+	private boolean hasLast;
+	private int lastArrival;
+	private short lastSequence;
+
+	/**
+	 * @return Jitter estimate in milliseconds.
+	 */
+	public int getJitter() {
+		return jitter >> 4;
+	}
+
+	/**
+	 * @return Playout delay target in frames.
+	 */
+	public int getTargetFrames() {
+		final int target = (3 * jitter / 16 + FRAME_MS - 1) / FRAME_MS;
+		return Math.max(MIN_TARGET, Math.min(MAX_TARGET, target));
+	}
+
+	/**
+	 * Records the arrival of the first frame of a packet.
+	 *
+	 * @param arrival
+	 *            Arrival time in milliseconds, only differences are used.
+	 * @param sequence
+	 *            Sequence of the packet's first frame.
+	 */
+	public void packetArrived(final int arrival, final short sequence) {
+		if (hasLast && arrival - lastArrival < RESET_GAP_MS) {
+			final int sequenceSpacing = (short) (sequence - lastSequence);
+			final int d = (arrival - lastArrival) - sequenceSpacing * FRAME_MS;
+			jitter += Math.abs(d) - ((jitter + 8) >> 4);
+		}
+
+		hasLast = true;
+		lastArrival = arrival;
+		lastSequence = sequence;
+	}
+}
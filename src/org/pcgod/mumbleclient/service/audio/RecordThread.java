@@ -1,44 +1,112 @@
 package org.pcgod.mumbleclient.service.audio;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
+import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.Settings;
 import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeBuffer;
+import org.pcgod.mumbleclient.jni.NativeHandle;
 import org.pcgod.mumbleclient.jni.celtConstants;
+import org.pcgod.mumbleclient.service.LinkStats;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.MumbleService;
 import org.pcgod.mumbleclient.service.PacketDataStream;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.util.Log;
 
 /**
  * Thread responsible for recording voice and sending it over to server.
  *
+ * The thread lives as long as the connection. The encoder, resampler and
+ * AudioRecord are created once and push to talk only toggles the
+ * transmission with setTransmitting, so the first words aren't lost to the
+ * setup. With pre-roll enabled the microphone keeps recording while idle and
+ * the last frames are sent ahead of the first frame after the press, which
+ * gets the first packet out within a frame of the press.
+ *
+ * In voice activity mode a VoiceDetector decides which frames are sent while
+ * transmitting. The pre-roll is always kept then, so the onset of a word
+ * is sent along with the frame that triggered the detector, and the end of
+ * each burst is marked with the terminator.
+ *
+ * The recording runs in a separate AudioCapture thread that fills a
+ * CaptureRing. This thread only resamples, encodes and sends, so an encoder
+ * stall delays the packets instead of losing audio.
+ *
  * @author pcgod
  *
  */
 public class RecordThread implements Runnable {
+	/** Frames kept for the pre-roll, one packet short of the current frame */
+	private static final int PRE_ROLL_FRAMES = 5;
+	/** 160 ms of audio for the encoder to catch up */
+	private static final int CAPTURE_RING_FRAMES = 16;
+	private static final int MAX_FRAMES_PER_PACKET = 6;
+	/** Largest frame the 7 bit length header allows */
+	private static final int MAX_FRAME_SIZE = 127;
+	/** Encoded frames between packet size and bitrate updates */
+	private static final int PACKET_SIZE_UPDATE_FRAMES = 100;
+
 	private final int audioQuality;
+	private final BitrateController bitrateController;
+	private volatile int bitrate;
 	private static int frameSize;
 	private static int recordingSampleRate;
 	private static final int TARGET_SAMPLE_RATE = MumbleProtocol.SAMPLE_RATE;
-	private final short[] buffer;
+	// The audio is recorded, resampled and encoded in direct buffers so the
+	// native calls don't pin or copy arrays. Recorded frames stay in the
+	// capture ring until encoded, which is also where the pre-roll is kept.
+	private final CaptureRing captureRing;
+	private final AudioCapture capture;
+	private Thread captureThread;
 	private int bufferSize;
-	private final long celtEncoder;
-	private final long celtMode;
-	private final int framesPerPacket = 6;
-	private final LinkedList<byte[]> outputQueue = new LinkedList<byte[]>();
-	private final short[] resampleBuffer = new short[MumbleProtocol.FRAME_SIZE];
+	private final NativeHandle celtEncoder;
+	private final LinkStats link;
+	private final PacketSizeController packetSize;
+	private volatile int framesPerPacket;
+	private int framesUntilUpdate;
+	// Encoded frames wait for the packet in fixed slots and the packets are
+	// built in one buffer, so transmitting doesn't produce garbage.
+	private final byte[][] encodedFrames = new byte[MAX_FRAMES_PER_PACKET][MAX_FRAME_SIZE];
+	private final int[] encodedLengths = new int[MAX_FRAMES_PER_PACKET];
+	private int encodedCount;
+	private final byte[] packetBuffer = new byte[1024];
+	private final PacketDataStream packet = new PacketDataStream(packetBuffer);
+	private final NativeBuffer resampleBuffer = new NativeBuffer(MumbleProtocol.FRAME_SIZE * 2);
+	/** in_len and out_len for the resampler */
+	private final NativeBuffer resampleLengths = new NativeBuffer(8);
+	private final NativeBuffer compressedBuffer = new NativeBuffer(MAX_FRAME_SIZE);
 	private int seq;
-	private final long speexResamplerState;
+	private final NativeHandle speexResamplerState;
 	private final MumbleService mService;
+	private final boolean preRoll;
+	/** Frames kept in the capture ring while not sending */
+	private final int preRollFrames;
+	/** Null when every frame is sent while transmitting */
+	private final VoiceDetector voiceDetector;
+
+	private volatile boolean shouldRun;
+	private volatile boolean transmitting;
+	private volatile Thread recordThread;
+
+	/** System.nanoTime of the last press, 0 once its first packet is sent */
+	private volatile long pressTime;
+	private volatile int startLatency;
+	private int startCount;
+	private long startLatencyTotal;
+	private int startLatencyMax;
 
 	public RecordThread(final MumbleService service) {
 		mService = service;
-		audioQuality = new Settings(mService.getApplicationContext()).getAudioQuality();
+		final Settings settings = new Settings(mService.getApplicationContext());
+		audioQuality = settings.getAudioQuality();
+		bitrateController = new BitrateController(audioQuality);
+		bitrate = bitrateController.getBitrate();
+		preRoll = settings.isPreRoll();
 
 		for (final int s : new int[] { 48000, 44100, 22050, 11025, 8000 }) {
 			bufferSize = AudioRecord.getMinBufferSize(
@@ -60,133 +128,349 @@ public class RecordThread implements Runnable {
 
 		frameSize = recordingSampleRate / 100;
 
-		buffer = new short[frameSize];
-		celtMode = Native.celt_mode_create(
+		if (settings.isVoiceActivity()) {
+			voiceDetector = new VoiceDetector(frameSize);
+		} else {
+			voiceDetector = null;
+		}
+		// Voice activity always needs the pre-roll for the word onsets.
+		preRollFrames = preRoll || voiceDetector != null ? PRE_ROLL_FRAMES
+			: 0;
+
+		captureRing = new CaptureRing(CAPTURE_RING_FRAMES, frameSize * 2);
+		capture = new AudioCapture(
+			recordingSampleRate,
+			frameSize,
+			captureRing);
+
+		celtEncoder = CeltCodecs.createEncoder(
 			MumbleProtocol.SAMPLE_RATE,
 			MumbleProtocol.FRAME_SIZE);
-		celtEncoder = Native.celt_encoder_create(celtMode, 1);
 		Native.celt_encoder_ctl(
-			celtEncoder,
+			celtEncoder.get(),
 			celtConstants.CELT_SET_PREDICTION_REQUEST,
 			0);
 		Native.celt_encoder_ctl(
-			celtEncoder,
+			celtEncoder.get(),
 			celtConstants.CELT_SET_VBR_RATE_REQUEST,
-			audioQuality);
+			bitrateController.getBitrate());
 
 		if (recordingSampleRate != TARGET_SAMPLE_RATE) {
-			speexResamplerState = Native.speex_resampler_init(
-				1,
-				recordingSampleRate,
-				TARGET_SAMPLE_RATE,
-				3);
+			speexResamplerState = NativeHandle.wrap(
+				NativeHandle.Type.SPEEX_RESAMPLER,
+				Native.speex_resampler_init(
+					1,
+					recordingSampleRate,
+					TARGET_SAMPLE_RATE,
+					3));
 		} else {
-			speexResamplerState = 0;
+			speexResamplerState = null;
 		}
+
+		link = mService.getLinkStats();
+		packetSize = new PacketSizeController(link);
+		framesPerPacket = packetSize.getFramesPerPacket();
+
+		// Set here so stop() before the thread gets to run() isn't lost.
+		shouldRun = true;
+	}
+
+	/**
+	 * @return Encoder bitrate in bits per second.
+	 */
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	/**
+	 * @return Recorded frames dropped because the encoder fell behind.
+	 */
+	public int getCaptureOverruns() {
+		return capture.getOverruns();
+	}
+
+	/**
+	 * @return Recorded frames that came short from the AudioRecord.
+	 */
+	public int getCaptureUnderruns() {
+		return capture.getUnderruns();
+	}
+
+	/**
+	 * @return Frames sent in each voice packet.
+	 */
+	public int getFramesPerPacket() {
+		return framesPerPacket;
+	}
+
+	/**
+	 * @return Milliseconds from the last press to its first packet.
+	 */
+	public int getStartLatency() {
+		return startLatency;
+	}
+
+	public boolean isTransmitting() {
+		return transmitting;
 	}
 
 	@Override
 	public final void run() {
-		final boolean running = true;
-		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+		recordThread = Thread.currentThread();
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
 
-		AudioRecord ar = null;
+		capture.setConsumer(recordThread);
+		captureThread = new Thread(capture, "capture");
+		captureThread.start();
 		try {
-			ar = new AudioRecord(
-				MediaRecorder.AudioSource.MIC,
-				recordingSampleRate,
-				AudioFormat.CHANNEL_CONFIGURATION_MONO,
-				AudioFormat.ENCODING_PCM_16BIT,
-				64 * 1024);
+			encodeLoop();
+		} finally {
+			capture.stop();
+			try {
+				captureThread.join();
+			} catch (final InterruptedException e) {
+				Globals.logWarn(this,
+					"Interrupted while waiting for capture thread to end",
+					e);
+			}
 
-			if (ar.getState() != AudioRecord.STATE_INITIALIZED) {
-				return;
+			// The thread runs for the connection, release the native state
+			// with it.
+			if (speexResamplerState != null) {
+				speexResamplerState.close();
 			}
+			CeltCodecs.destroyEncoder(
+				celtEncoder,
+				MumbleProtocol.SAMPLE_RATE,
+				MumbleProtocol.FRAME_SIZE);
 
-			ar.startRecording();
-			while (running && !Thread.interrupted()) {
-				final int read = ar.read(buffer, 0, frameSize);
+			Globals.logInfo(this, String.format(
+				"Capture overruns: %d, underruns: %d",
+				capture.getOverruns(),
+				capture.getUnderruns()));
+			if (voiceDetector != null) {
+				Globals.logInfo(this, String.format(
+					"Voice activity: %d%% of the frames sent",
+					voiceDetector.getVoicePercentage()));
+			}
+			if (startCount > 0) {
+				Globals.logInfo(this, String.format(
+					"Press to first packet: %d ms average, %d ms max over %d presses",
+					startLatencyTotal / startCount,
+					startLatencyMax,
+					startCount));
+			}
+		}
+	}
 
-				if (read == AudioRecord.ERROR_BAD_VALUE ||
-					read == AudioRecord.ERROR_INVALID_OPERATION) {
-					throw new RuntimeException("" + read);
-				}
+	/**
+	 * Starts or stops sending the recorded audio. Called on push to talk.
+	 */
+	public void setTransmitting(final boolean transmitting) {
+		if (transmitting && !this.transmitting && voiceDetector == null) {
+			pressTime = System.nanoTime();
+		}
+		this.transmitting = transmitting;
+		LockSupport.unpark(recordThread);
+	}
 
-				short[] out;
-				if (speexResamplerState != 0) {
-					out = resampleBuffer;
-					final int[] in_len = new int[] { buffer.length };
-					final int[] out_len = new int[] { out.length };
-					Native.speex_resampler_process_int(
-						speexResamplerState,
-						0,
-						buffer,
-						in_len,
-						out,
-						out_len);
-				} else {
-					out = buffer;
-				}
+	/**
+	 * Stops the thread. Frames that are queued but not sent yet are dropped.
+	 */
+	public void stop() {
+		shouldRun = false;
+		transmitting = false;
+		LockSupport.unpark(recordThread);
+	}
 
-				final int compressedSize = Math.min(
-					audioQuality / (100 * 8),
-					127);
-				final byte[] compressed = new byte[compressedSize];
-				synchronized (Native.class) {
-					Native.celt_encode(
-						celtEncoder,
-						out,
-						compressed,
-						compressedSize);
-				}
-				outputQueue.add(compressed);
+	/**
+	 * Encodes the frame at the address and sends a packet when there are
+	 * enough frames for one.
+	 */
+	private void encodeFrame(final long frame) {
+		// Change the packet size only between packets.
+		framesUntilUpdate--;
+		if (encodedCount == 0 && framesUntilUpdate <= 0) {
+			framesUntilUpdate = PACKET_SIZE_UPDATE_FRAMES;
+			updateLink();
+		}
 
-				if (outputQueue.size() < framesPerPacket) {
-					continue;
+		final int compressedSize = Math.min(
+			bitrate / (100 * 8),
+			MAX_FRAME_SIZE);
+
+		final long out;
+		if (speexResamplerState != null) {
+			final ByteBuffer lengths = resampleLengths.buffer();
+			lengths.putInt(0, frameSize);
+			lengths.putInt(4, MumbleProtocol.FRAME_SIZE);
+			Native.speex_resampler_process_int_direct(
+				speexResamplerState.get(),
+				0,
+				frame,
+				resampleLengths.address(),
+				resampleBuffer.address(),
+				resampleLengths.address(4));
+			out = resampleBuffer.address();
+		} else {
+			out = frame;
+		}
+
+		Native.celt_encode_direct(
+			celtEncoder.get(),
+			out,
+			compressedBuffer.address(),
+			compressedSize);
+		compressedBuffer.buffer().clear();
+		compressedBuffer.buffer().get(
+			encodedFrames[encodedCount],
+			0,
+			compressedSize);
+		encodedLengths[encodedCount++] = compressedSize;
+
+		if (encodedCount >= framesPerPacket) {
+			sendPacket(false);
+		}
+	}
+
+	private void encodeLoop() {
+		boolean sending = false;
+		// Frames at the head of the ring already seen by the detector.
+		int analyzed = 0;
+
+		while (shouldRun) {
+			final boolean transmit = transmitting;
+
+			if (!transmit && sending) {
+				endTransmission();
+				sending = false;
+			}
+
+			capture.setActive(transmit || preRoll);
+
+			if (!transmit) {
+				// Keep the pre-roll frames and drop the older ones. Without
+				// the pre-roll setting the capture stops and what is left
+				// would be stale by the next start.
+				final int keep = preRoll ? preRollFrames : 0;
+				while (captureRing.size() > keep) {
+					captureRing.remove();
 				}
+				analyzed = 0;
+				if (voiceDetector != null) {
+					voiceDetector.reset();
+				}
+				LockSupport.park(this);
+				continue;
+			}
 
-				final byte[] outputBuffer = new byte[1024];
-				final PacketDataStream pds = new PacketDataStream(outputBuffer);
-				while (!outputQueue.isEmpty()) {
-					int flags = 0;
-					flags |= mService.getCodec() << 5;
-					outputBuffer[0] = (byte) flags;
-
-					pds.rewind();
-					// skip flags
-					pds.next();
-					seq += framesPerPacket;
-					pds.writeLong(seq);
-					for (int i = 0; i < framesPerPacket; ++i) {
-						final byte[] tmp = outputQueue.poll();
-						if (tmp == null) {
-							break;
-						}
-						int head = (short) tmp.length;
-						if (i < framesPerPacket - 1) {
-							head |= 0x80;
-						}
-
-						pds.append(head);
-						pds.append(tmp);
-					}
-
-					mService.sendUdpMessage(outputBuffer, pds.size());
+			final NativeBuffer frame = captureRing.peek(analyzed);
+			if (frame == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			analyzed++;
+
+			if (voiceDetector == null || voiceDetector.isVoice(frame.buffer())) {
+				sending = true;
+
+				// Send the pre-roll and the frame.
+				for (; analyzed > 0; analyzed--) {
+					encodeFrame(captureRing.peek().address());
+					captureRing.remove();
 				}
+				continue;
 			}
-		} finally {
-			if (ar != null) {
-				ar.release();
+
+			if (sending) {
+				endTransmission();
+				sending = false;
+			}
+
+			// Silence. Keep the pre-roll, the sequence goes on so the
+			// receivers see the gap.
+			for (; analyzed > preRollFrames; analyzed--) {
+				captureRing.remove();
+				seq++;
 			}
 		}
+
+		capture.setActive(false);
 	}
 
-	@Override
-	protected final void finalize() {
-		if (speexResamplerState != 0) {
-			Native.speex_resampler_destroy(speexResamplerState);
+	/**
+	 * Sends the frames still queued with the terminator.
+	 */
+	private void endTransmission() {
+		sendPacket(true);
+	}
+
+	/**
+	 * Sends the queued frames in one packet.
+	 *
+	 * @param terminate
+	 *            Ends the packet with an empty frame, which marks the end of
+	 *            the transmission for the receivers.
+	 */
+	private void sendPacket(final boolean terminate) {
+		int flags = 0;
+		flags |= mService.getCodec() << 5;
+		packetBuffer[0] = (byte) flags;
+
+		packet.rewind();
+		// skip flags
+		packet.next();
+		// The header carries the number of the first frame, the receivers
+		// count the rest from it.
+		packet.writeLong(seq);
+		seq += encodedCount;
+		for (int i = 0; i < encodedCount; ++i) {
+			int head = encodedLengths[i];
+			if (i < encodedCount - 1 || terminate) {
+				head |= 0x80;
+			}
+
+			packet.append(head);
+			packet.append(encodedFrames[i], encodedLengths[i]);
+		}
+		if (terminate) {
+			packet.append(0);
+		}
+		encodedCount = 0;
+
+		mService.sendUdpMessage(packetBuffer, packet.size());
+
+		final long press = pressTime;
+		if (press != 0) {
+			pressTime = 0;
+			startLatency = (int) ((System.nanoTime() - press) / 1000000);
+			startCount++;
+			startLatencyTotal += startLatency;
+			startLatencyMax = Math.max(startLatencyMax, startLatency);
+		}
+	}
+
+	/**
+	 * Adapts the packet size and the bitrate to the link.
+	 */
+	private void updateLink() {
+		// The packet size is chosen for the configured quality so that a
+		// lowered bitrate doesn't in turn shrink the packets.
+		if (packetSize.update(Math.min(audioQuality / (100 * 8), MAX_FRAME_SIZE))) {
+			framesPerPacket = packetSize.getFramesPerPacket();
+		}
+
+		if (bitrateController.update(
+			framesPerPacket,
+			link.isTunnelling(),
+			packetSize.getLoss(),
+			packetSize.isLossSampled(),
+			link.getMaxBandwidth())) {
+			bitrate = bitrateController.getBitrate();
+			Native.celt_encoder_ctl(
+				celtEncoder.get(),
+				celtConstants.CELT_SET_VBR_RATE_REQUEST,
+				bitrate);
 		}
-		Native.celt_encoder_destroy(celtEncoder);
-		Native.celt_mode_destroy(celtMode);
 	}
 }
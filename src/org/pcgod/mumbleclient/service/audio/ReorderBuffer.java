@@ -0,0 +1,186 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.jni.Native;
+
+/**
+ * Puts frames back in sequence order for playback without a jitter buffer.
+ *
+ * Frames are stored in a circular buffer indexed by sequence number. A
+ * missing frame is waited for until WAIT_FRAMES newer frames have arrived or
+ * for WAIT_FRAMES ticks at most. After that it counts as lost and the caller
+ * conceals it. Frames that arrive after their turn and duplicates are
+ * dropped.
+ *
+ * Sequence numbers are the 16 bit frame sequence from
+ * Native.JitterBufferPacket.sequence and are compared with wrap-around.
+ * Not thread safe, only the decoding thread uses it.
+ */
+class ReorderBuffer {
+	/** Slots in the buffer, must be a power of two */
+	private static final int CAPACITY = 16;
+	/** Frames or ticks to wait for a missing frame */
+	private static final int WAIT_FRAMES = 2;
+	/** Frames kept waiting at most. Older ones are skipped to cap latency */
+	private static final int MAX_BACKLOG = 8;
+	/** Empty ticks after which the next frame starts a new stream */
+	private static final int RESYNC_IDLE = 10;
+	/** Sequence jump that is taken as a new stream instead of loss */
+	private static final int RESYNC_DISTANCE = 100;
+	private static final int MAX_FRAME_SIZE = 128;
+
+	private static int distance(final short a, final short b) {
+		return (short) (a - b);
+	}
+
+	private final byte[][] data = new byte[CAPACITY][MAX_FRAME_SIZE];
+	private final int[] lengths = new int[CAPACITY];
+	private final short[] sequences = new short[CAPACITY];
+	private final boolean[] present = new boolean[CAPACITY];
+
+	/** True once a frame has been played since the last resync */
+	private boolean started;
+	/** Sequence of the next frame to play */
+	private short next;
+	/** Highest sequence in the buffer */
+	private short newest;
+	private int count;
+	private int waited;
+	private int idle;
+
+	private int concealed;
+	private int dropped;
+
+	/**
+	 * @return Number of frames waiting to be played.
+	 */
+	public int getBacklog() {
+		return count;
+	}
+
+	/**
+	 * @return Frames that were given up on and concealed.
+	 */
+	public int getConcealed() {
+		return concealed;
+	}
+
+	/**
+	 * @return Late and duplicate frames that were dropped.
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Copies the next frame into out.
+	 *
+	 * @return Length of the frame or -1 if there is no frame to play and the
+	 *         caller should conceal one.
+	 */
+	public int get(final byte[] out) {
+		if (count == 0) {
+			if (++idle >= RESYNC_IDLE) {
+				started = false;
+			}
+			return -1;
+		}
+		idle = 0;
+		started = true;
+
+		if (distance(newest, next) >= MAX_BACKLOG) {
+			skipTo((short) (newest - MAX_BACKLOG + 1));
+		}
+
+		final int slot = next & (CAPACITY - 1);
+		if (present[slot] && sequences[slot] == next) {
+			final int length = lengths[slot];
+			System.arraycopy(data[slot], 0, out, 0, length);
+			present[slot] = false;
+			count--;
+			next++;
+			waited = 0;
+			return length;
+		}
+
+		// The next frame is missing but newer ones are here. Wait for it
+		// unless enough newer frames have arrived to call it lost.
+		if (distance(newest, next) < WAIT_FRAMES && waited < WAIT_FRAMES) {
+			waited++;
+			return -1;
+		}
+
+		waited = 0;
+		next++;
+		concealed++;
+		return -1;
+	}
+
+	public void put(final Native.JitterBufferPacket packet) {
+		final short seq = packet.sequence;
+
+		if (!started && count == 0) {
+			next = seq;
+			newest = seq;
+		}
+
+		int d = distance(seq, next);
+		if (d < 0) {
+			if (-d > RESYNC_DISTANCE) {
+				reset(seq);
+			} else if (!started && distance(newest, seq) < CAPACITY) {
+				// Nothing played yet, start from the earlier frame.
+				next = seq;
+			} else {
+				dropped++;
+				return;
+			}
+		} else if (d > RESYNC_DISTANCE) {
+			reset(seq);
+		} else if (d >= CAPACITY) {
+			skipTo((short) (seq - CAPACITY + 1));
+		}
+
+		final int slot = seq & (CAPACITY - 1);
+		if (present[slot]) {
+			dropped++;
+			return;
+		}
+
+		System.arraycopy(packet.data, 0, data[slot], 0, packet.len);
+		lengths[slot] = packet.len;
+		sequences[slot] = seq;
+		present[slot] = true;
+		count++;
+
+		if (distance(seq, newest) > 0) {
+			newest = seq;
+		}
+	}
+
+	private void reset(final short seq) {
+		for (int i = 0; i < CAPACITY; i++) {
+			present[i] = false;
+		}
+		count = 0;
+		waited = 0;
+		started = false;
+		next = seq;
+		newest = seq;
+	}
+
+	/**
+	 * Drops the frames before seq and continues from it.
+	 */
+	private void skipTo(final short seq) {
+		while (distance(seq, next) > 0) {
+			final int slot = next & (CAPACITY - 1);
+			if (present[slot] && sequences[slot] == next) {
+				present[slot] = false;
+				count--;
+				dropped++;
+			}
+			next++;
+		}
+		waited = 0;
+	}
+}
@@ -0,0 +1,172 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * WSOLA style time scaling of decoded speech.
+ *
+ * A frame is shortened or lengthened by one pitch period. The period is the
+ * lag at which the signal is most similar to itself, found with a normalized
+ * cross-correlation over a short overlap window. The removed or repeated
+ * segment is cross-faded across the overlap, so the result has no
+ * discontinuity. Frames without a clear period are passed through unchanged
+ * unless they are close to silent.
+ *
+ * Not thread safe, only the decoding thread uses it.
+ */
+class TimeScaler {
+	public static final int NORMAL = 0;
+	public static final int ACCELERATE = 1;
+	public static final int EXPAND = 2;
+
+	private static final int FRAME_SIZE = MumbleProtocol.FRAME_SIZE;
+	/** Cross-fade length, 2.5 ms */
+	private static final int OVERLAP = FRAME_SIZE / 4;
+	/** Shortest period searched, 400 Hz */
+	private static final int MIN_LAG = FRAME_SIZE / 4;
+	/** Longest period that fits in a frame with the overlap */
+	private static final int MAX_LAG = FRAME_SIZE - OVERLAP;
+	/** Step of the coarse lag search and its correlation */
+	private static final int COARSE_STEP = 4;
+	/** Correlation a period needs to be used */
+	private static final double MIN_CORRELATION = 0.6;
+	/** Mean square below which a frame counts as silent */
+	private static final long SILENCE_ENERGY = 100L * 100L;
+
+	/**
+	 * Largest number of samples process() writes.
+	 */
+	public static final int MAX_OUTPUT = FRAME_SIZE + MAX_LAG;
+
+	private static double correlation(
+		final short[] x,
+		final int lag,
+		final int step) {
+		long xy = 0;
+		long xx = 0;
+		long yy = 0;
+		for (int i = 0; i < OVERLAP; i += step) {
+			final int a = x[i];
+			final int b = x[i + lag];
+			xy += a * b;
+			xx += a * a;
+			yy += b * b;
+		}
+		if (xy <= 0 || xx == 0 || yy == 0) {
+			return 0;
+		}
+		return xy / Math.sqrt((double) xx * yy);
+	}
+
+	private static boolean isSilent(final short[] x) {
+		long energy = 0;
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			energy += x[i] * x[i];
+		}
+		return energy / FRAME_SIZE < SILENCE_ENERGY;
+	}
+
+	private int accelerated;
+	private int expanded;
+	private int lag;
+
+	public int getAccelerated() {
+		return accelerated;
+	}
+
+	public int getExpanded() {
+		return expanded;
+	}
+
+	/**
+	 * Scales one decoded frame.
+	 *
+	 * @param in
+	 *            FRAME_SIZE samples
+	 * @param mode
+	 *            NORMAL, ACCELERATE or EXPAND
+	 * @param out
+	 *            Output buffer with room for MAX_OUTPUT samples at offset
+	 * @return Number of samples written to out.
+	 */
+	public int process(
+		final short[] in,
+		final int mode,
+		final short[] out,
+		final int offset) {
+		if (mode != NORMAL && findLag(in)) {
+			if (mode == ACCELERATE) {
+				// Fade from the start of the frame into the same point one
+				// period later, which drops the period.
+				crossFade(in, 0, lag, out, offset);
+				final int rest = FRAME_SIZE - lag - OVERLAP;
+				System.arraycopy(in, lag + OVERLAP, out, offset + OVERLAP, rest);
+				accelerated++;
+				return OVERLAP + rest;
+			}
+
+			// Play the first period, fade back to the start of the frame and
+			// play the whole frame again from there.
+			System.arraycopy(in, 0, out, offset, lag);
+			crossFade(in, lag, 0, out, offset + lag);
+			System.arraycopy(
+				in,
+				OVERLAP,
+				out,
+				offset + lag + OVERLAP,
+				FRAME_SIZE - OVERLAP);
+			expanded++;
+			return FRAME_SIZE + lag;
+		}
+
+		System.arraycopy(in, 0, out, offset, FRAME_SIZE);
+		return FRAME_SIZE;
+	}
+
+	/**
+	 * Writes OVERLAP samples fading from in[from] to in[to].
+	 */
+	private void crossFade(
+		final short[] in,
+		final int from,
+		final int to,
+		final short[] out,
+		final int offset) {
+		for (int i = 0; i < OVERLAP; i++) {
+			final int a = in[from + i] * (OVERLAP - i);
+			final int b = in[to + i] * i;
+			out[offset + i] = (short) ((a + b) / OVERLAP);
+		}
+	}
+
+	/**
+	 * Finds the pitch period of the frame and stores it in lag.
+	 *
+	 * @return False if the frame has no usable period.
+	 */
+	private boolean findLag(final short[] x) {
+		int best = MIN_LAG;
+		double bestCorrelation = -1;
+		for (int l = MIN_LAG; l <= MAX_LAG; l += COARSE_STEP) {
+			final double c = correlation(x, l, COARSE_STEP);
+			if (c > bestCorrelation) {
+				bestCorrelation = c;
+				best = l;
+			}
+		}
+
+		final int from = Math.max(MIN_LAG, best - COARSE_STEP + 1);
+		final int to = Math.min(MAX_LAG, best + COARSE_STEP - 1);
+		bestCorrelation = -1;
+		for (int l = from; l <= to; l++) {
+			final double c = correlation(x, l, 1);
+			if (c > bestCorrelation) {
+				bestCorrelation = c;
+				best = l;
+			}
+		}
+
+		lag = best;
+		return bestCorrelation >= MIN_CORRELATION || isSilent(x);
+	}
+}
@@ -0,0 +1,101 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Energy based voice activity detection for voice activated transmission.
+ *
+ * A frame is voice when its energy is well above the tracked noise floor and
+ * above an absolute minimum. The floor follows quieter frames quickly and
+ * louder ones slowly, so it settles on the background noise between words
+ * without climbing onto the speech. Voice is held for a hangover after the
+ * last loud frame so word endings and short pauses aren't cut.
+ *
+ * Only for use in the record thread.
+ */
+class VoiceDetector {
+	/** Voice must be this many times the noise floor energy, about 9 dB */
+	private static final int SPEECH_RATIO = 8;
+	/** Energy of an RMS level of 200, quieter frames are never voice */
+	private static final long MIN_SPEECH_ENERGY = 200 * 200;
+	/** Lowest noise floor, keeps the ratio meaningful in digital silence */
+	private static final long MIN_NOISE_FLOOR = 20 * 20;
+	/** Frames sent after the last loud frame, 300 ms */
+	private static final int HANGOVER_FRAMES = 30;
+
+	private final int frameSize;
+	private long noiseFloor = MIN_NOISE_FLOOR;
+	private int hangover;
+
+	private int voiceFrames;
+	private int silentFrames;
+
+	/**
+	 * @param frameSize
+	 *            Samples in a frame.
+	 */
+	public VoiceDetector(final int frameSize) {
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * @return Percentage of the analyzed frames that were voice.
+	 */
+	public int getVoicePercentage() {
+		final int total = voiceFrames + silentFrames;
+		return total == 0 ? 0 : voiceFrames * 100 / total;
+	}
+
+	/**
+	 * Analyzes the next frame.
+	 *
+	 * @param frame
+	 *            Native order 16 bit samples, from the start of the buffer.
+	 * @return True if the frame should be sent.
+	 */
+	public boolean isVoice(final ByteBuffer frame) {
+		long sum = 0;
+		for (int i = 0; i < frameSize; i++) {
+			final int sample = frame.getShort(i * 2);
+			sum += sample * sample;
+		}
+		final long energy = sum / frameSize;
+
+		final boolean loud = energy > MIN_SPEECH_ENERGY &&
+							 energy > noiseFloor * SPEECH_RATIO;
+
+		if (energy < noiseFloor) {
+			noiseFloor -= (noiseFloor - energy) / 8;
+		} else if (!loud) {
+			// Rises about 3 dB per second.
+			noiseFloor += (noiseFloor >> 7) + 1;
+		} else {
+			// Follows a loud but steady noise in about 20 seconds.
+			noiseFloor += (noiseFloor >> 10) + 1;
+		}
+		if (noiseFloor < MIN_NOISE_FLOOR) {
+			noiseFloor = MIN_NOISE_FLOOR;
+		}
+
+		if (loud) {
+			hangover = HANGOVER_FRAMES;
+		} else if (hangover > 0) {
+			hangover--;
+		}
+
+		final boolean voice = loud || hangover > 0;
+		if (voice) {
+			voiceFrames++;
+		} else {
+			silentFrames++;
+		}
+		return voice;
+	}
+
+	/**
+	 * Ends the hangover. The noise floor is kept.
+	 */
+	public void reset() {
+		hangover = 0;
+	}
+}
@@ -0,0 +1,199 @@
+package org.pcgod.mumbleclient.jni;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+
+/**
+ * Micro-benchmark of the JNI crossing with Java arrays and with direct
+ * buffers for the codec and resampler calls.
+ *
+ * Runs with the instrumentation tests on the device. The time per call of
+ * each variant goes to the log.
+ */
+public class NativeBenchmark extends TestCase {
+	private static abstract class Case {
+		final String name;
+
+		Case(final String name) {
+			this.name = name;
+		}
+
+		abstract void call();
+	}
+
+	private static final int SAMPLE_RATE = 48000;
+	private static final int FRAME_SIZE = SAMPLE_RATE / 100;
+	private static final int RECORD_RATE = 44100;
+	private static final int RECORD_FRAME_SIZE = RECORD_RATE / 100;
+	private static final int COMPRESSED_SIZE = 60;
+
+	private static final int ITERATIONS = 10000;
+
+	/**
+	 * Runs every variant ITERATIONS times after a warm up and logs the
+	 * average time per call.
+	 */
+	public void testCallTimes() {
+		final int iterations = ITERATIONS;
+		final NativeHandle mode = NativeHandle.wrap(
+			NativeHandle.Type.CELT_MODE,
+			Native.celt_mode_create(SAMPLE_RATE, FRAME_SIZE));
+		final NativeHandle encoder = NativeHandle.wrap(
+			NativeHandle.Type.CELT_ENCODER,
+			Native.celt_encoder_create(mode.get(), 1));
+		final NativeHandle decoder = NativeHandle.wrap(
+			NativeHandle.Type.CELT_DECODER,
+			Native.celt_decoder_create(mode.get(), 1));
+		final NativeHandle resampler = NativeHandle.wrap(
+			NativeHandle.Type.SPEEX_RESAMPLER,
+			Native.speex_resampler_init(1, RECORD_RATE, SAMPLE_RATE, 3));
+
+		try {
+			runCases(
+				iterations,
+				encoder.get(),
+				decoder.get(),
+				resampler.get());
+		} finally {
+			resampler.close();
+			decoder.close();
+			encoder.close();
+			mode.close();
+		}
+	}
+
+	private static void runCases(
+		final int iterations,
+		final long encoder,
+		final long decoder,
+		final long resampler) {
+		// A tone so the encoder and decoder do real work.
+		final short[] pcm = new short[FRAME_SIZE];
+		final short[] recorded = new short[RECORD_FRAME_SIZE];
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			pcm[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+		}
+		System.arraycopy(pcm, 0, recorded, 0, RECORD_FRAME_SIZE);
+
+		final byte[] compressed = new byte[COMPRESSED_SIZE];
+		final float[] pcmFloat = new float[FRAME_SIZE];
+		Native.celt_encode(encoder, pcm, compressed, COMPRESSED_SIZE);
+
+		final NativeBuffer pcmDirect = new NativeBuffer(FRAME_SIZE * 2);
+		final NativeBuffer recordedDirect = new NativeBuffer(RECORD_FRAME_SIZE * 2);
+		final NativeBuffer compressedDirect = new NativeBuffer(COMPRESSED_SIZE);
+		final NativeBuffer floatDirect = new NativeBuffer(FRAME_SIZE * 4);
+		final NativeBuffer lengths = new NativeBuffer(8);
+		pcmDirect.buffer().asShortBuffer().put(pcm);
+		recordedDirect.buffer().asShortBuffer().put(recorded);
+		compressedDirect.buffer().put(compressed);
+		final ByteBuffer lengthBuffer = lengths.buffer();
+
+		final Case[] cases = new Case[] {
+			new Case("JNI call, no work") {
+				@Override
+				void call() {
+					Native.GetDirectBufferAddress(lengthBuffer);
+				}
+			},
+			new Case("celt_encode, arrays") {
+				@Override
+				void call() {
+					Native.celt_encode(encoder, pcm, compressed, COMPRESSED_SIZE);
+				}
+			},
+			new Case("celt_encode, direct") {
+				@Override
+				void call() {
+					Native.celt_encode_direct(
+						encoder,
+						pcmDirect.address(),
+						compressedDirect.address(),
+						COMPRESSED_SIZE);
+				}
+			},
+			new Case("celt_decode, arrays") {
+				@Override
+				void call() {
+					Native.celt_decode(decoder, compressed, COMPRESSED_SIZE, pcm);
+				}
+			},
+			new Case("celt_decode, direct") {
+				@Override
+				void call() {
+					Native.celt_decode_direct(
+						decoder,
+						compressedDirect.address(),
+						COMPRESSED_SIZE,
+						pcmDirect.address());
+				}
+			},
+			new Case("celt_decode_float, arrays") {
+				@Override
+				void call() {
+					Native.celt_decode_float(
+						decoder,
+						compressed,
+						COMPRESSED_SIZE,
+						pcmFloat);
+				}
+			},
+			new Case("celt_decode_float, direct") {
+				@Override
+				void call() {
+					Native.celt_decode_float_direct(
+						decoder,
+						compressedDirect.address(),
+						COMPRESSED_SIZE,
+						floatDirect.address());
+				}
+			},
+			new Case("speex_resampler_process_int, arrays") {
+				@Override
+				void call() {
+					// Allocates the length holders like the old record loop.
+					Native.speex_resampler_process_int(
+						resampler,
+						0,
+						recorded,
+						new int[] { RECORD_FRAME_SIZE },
+						pcm,
+						new int[] { FRAME_SIZE });
+				}
+			},
+			new Case("speex_resampler_process_int, direct") {
+				@Override
+				void call() {
+					lengthBuffer.putInt(0, RECORD_FRAME_SIZE);
+					lengthBuffer.putInt(4, FRAME_SIZE);
+					Native.speex_resampler_process_int_direct(
+						resampler,
+						0,
+						recordedDirect.address(),
+						lengths.address(),
+						pcmDirect.address(),
+						lengths.address(4));
+				}
+			} };
+
+		for (final Case c : cases) {
+			for (int i = 0; i < iterations / 10 + 1; i++) {
+				c.call();
+			}
+
+			final long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				c.call();
+			}
+			final long perCall = (System.nanoTime() - start) / iterations;
+
+			Globals.logInfo(NativeBenchmark.class, String.format(
+				"%s: %d ns per call",
+				c.name,
+				perCall));
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeHandle;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Checks that the Java jitter buffer returns the same as the native Speex
+ * buffer and compares their speed.
+ *
+ * Both backends replay the same traces, driven the way AudioUser drives them:
+ * put the packets that arrived, get, update the delay and tick. Every
+ * result is compared: the status, the returned packet, the start offset, the
+ * delay change and the timestamp after the tick. The first difference of
+ * each trace and the time per frame of each backend go to the log.
+ */
+public class JitterBufferTest extends TestCase {
+	/**
+	 * The calls AudioUser makes on a jitter buffer.
+	 */
+	private interface Backend {
+		void close();
+
+		int get(Native.JitterBufferPacket packet, int[] startOffset);
+
+		int getTimestamp();
+
+		void put(Native.JitterBufferPacket packet);
+
+		void setMargin(int margin);
+
+		void tick();
+
+		int updateDelay();
+	}
+
+	private static final class JavaBackend implements Backend {
+		private final JitterBuffer buffer = new JitterBuffer(MumbleProtocol.FRAME_SIZE);
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int get(
+			final Native.JitterBufferPacket packet,
+			final int[] startOffset) {
+			return buffer.get(packet, MumbleProtocol.FRAME_SIZE, startOffset);
+		}
+
+		@Override
+		public int getTimestamp() {
+			return buffer.getTimestamp();
+		}
+
+		@Override
+		public void put(final Native.JitterBufferPacket packet) {
+			buffer.put(packet);
+		}
+
+		@Override
+		public void setMargin(final int margin) {
+			buffer.setMargin(margin);
+		}
+
+		@Override
+		public void tick() {
+			buffer.tick();
+		}
+
+		@Override
+		public int updateDelay() {
+			return buffer.updateDelay();
+		}
+	}
+
+	private static final class NativeBackend implements Backend {
+		private final NativeHandle buffer = NativeHandle.wrap(
+			NativeHandle.Type.JITTER_BUFFER,
+			Native.jitter_buffer_init(MumbleProtocol.FRAME_SIZE));
+		private final int[] argument = new int[1];
+
+		@Override
+		public void close() {
+			buffer.close();
+		}
+
+		@Override
+		public int get(
+			final Native.JitterBufferPacket packet,
+			final int[] startOffset) {
+			return Native.jitter_buffer_get(
+				buffer.get(),
+				packet,
+				MumbleProtocol.FRAME_SIZE,
+				startOffset);
+		}
+
+		@Override
+		public int getTimestamp() {
+			return Native.jitter_buffer_get_pointer_timestamp(buffer.get());
+		}
+
+		@Override
+		public void put(final Native.JitterBufferPacket packet) {
+			Native.jitter_buffer_put(buffer.get(), packet);
+		}
+
+		@Override
+		public void setMargin(final int margin) {
+			argument[0] = margin;
+			Native.jitter_buffer_ctl(buffer.get(), 0, argument);
+		}
+
+		@Override
+		public void tick() {
+			Native.jitter_buffer_tick(buffer.get());
+		}
+
+		@Override
+		public int updateDelay() {
+			return Native.jitter_buffer_update_delay(buffer.get(), null, null);
+		}
+	}
+
+	/**
+	 * Packets and results of one backend during a replay.
+	 */
+	private static final class Replay {
+		final Backend backend;
+		final Native.JitterBufferPacket in = newPacket();
+		final Native.JitterBufferPacket out = newPacket();
+		final int[] startOffset = new int[1];
+		int result;
+		int delay;
+
+		Replay(final Backend backend) {
+			this.backend = backend;
+		}
+
+		/**
+		 * Puts the packets arriving in the tick from next on and plays one
+		 * frame.
+		 *
+		 * @return Index of the first packet of a later tick.
+		 */
+		int step(final JitterTrace trace, final int tick, int next) {
+			for (; next < trace.size() && trace.arrivals[next] == tick; next++) {
+				trace.fill(next, in);
+				backend.put(in);
+			}
+
+			out.len = out.data.length;
+			result = backend.get(out, startOffset);
+			delay = backend.updateDelay();
+			backend.tick();
+			return next;
+		}
+	}
+
+	private static final int TRACES = 200;
+	private static final long SEED = 1;
+	private static final int TRACE_FRAMES = 3000;
+	private static final int MAX_FRAME_SIZE = 128;
+
+	/**
+	 * Replays the traces generated from SEED, SEED + 1 and so on through
+	 * both backends.
+	 */
+	public void testMatchesNativeBuffer() {
+		final int traces = TRACES;
+		final long seed = SEED;
+		int failed = 0;
+		long frames = 0;
+		long javaTime = 0;
+		long nativeTime = 0;
+		for (int t = 0; t < traces; t++) {
+			final JitterTrace trace = JitterTrace.generate(
+				seed + t,
+				TRACE_FRAMES);
+			final Random random = new Random(seed + t);
+			final int margin = random.nextInt(4) * MumbleProtocol.FRAME_SIZE;
+			final int changedMargin = random.nextInt(4) *
+									  MumbleProtocol.FRAME_SIZE;
+
+			final String difference = compare(trace, margin, changedMargin);
+			if (difference != null) {
+				failed++;
+				Globals.logWarn(JitterBufferTest.class, String.format(
+					"Trace %d: %s",
+					seed + t,
+					difference));
+			}
+
+			javaTime += time(new JavaBackend(), trace, margin, changedMargin);
+			nativeTime += time(new NativeBackend(), trace, margin, changedMargin);
+			frames += trace.ticks;
+		}
+
+		Globals.logInfo(JitterBufferTest.class, String.format(
+			"%d of %d traces matched over %d frames. Java %d ns per frame, native %d ns per frame",
+			traces - failed,
+			traces,
+			frames,
+			javaTime / frames,
+			nativeTime / frames));
+		assertEquals("Traces that differ, see the log", 0, failed);
+	}
+
+	/**
+	 * Replays the trace through both backends in lock step.
+	 *
+	 * @return The first difference or null if there was none.
+	 */
+	private static String compare(
+		final JitterTrace trace,
+		final int margin,
+		final int changedMargin) {
+		final Replay java = new Replay(new JavaBackend());
+		final Replay speex = new Replay(new NativeBackend());
+		java.backend.setMargin(margin);
+		speex.backend.setMargin(margin);
+
+		try {
+			int next = 0;
+			for (int tick = 0; tick < trace.ticks; tick++) {
+				if (tick == trace.ticks / 2) {
+					java.backend.setMargin(changedMargin);
+					speex.backend.setMargin(changedMargin);
+				}
+
+				speex.step(trace, tick, next);
+				next = java.step(trace, tick, next);
+
+				final String difference = difference(java, speex);
+				if (difference != null) {
+					return String.format("tick %d: %s", tick, difference);
+				}
+			}
+			return null;
+		} finally {
+			java.backend.close();
+			speex.backend.close();
+		}
+	}
+
+	private static String difference(final Replay java, final Replay speex) {
+		final Native.JitterBufferPacket a = java.out;
+		final Native.JitterBufferPacket b = speex.out;
+		if (java.result != speex.result) {
+			return String.format(
+				"status %d, native %d",
+				java.result,
+				speex.result);
+		}
+		if (a.timestamp != b.timestamp || a.span != b.span || a.len != b.len) {
+			return String.format(
+				"packet at %d span %d length %d, native at %d span %d length %d",
+				a.timestamp,
+				a.span,
+				a.len,
+				b.timestamp,
+				b.span,
+				b.len);
+		}
+		if (java.result == JitterBuffer.JITTER_BUFFER_OK) {
+			if (a.sequence != b.sequence || a.user_data != b.user_data) {
+				return String.format(
+					"sequence %d, native %d",
+					a.sequence,
+					b.sequence);
+			}
+			for (int i = 0; i < a.len; i++) {
+				if (a.data[i] != b.data[i]) {
+					return String.format("data differs at byte %d", i);
+				}
+			}
+			if (java.startOffset[0] != speex.startOffset[0]) {
+				return String.format(
+					"start offset %d, native %d",
+					java.startOffset[0],
+					speex.startOffset[0]);
+			}
+		}
+		if (java.delay != speex.delay) {
+			return String.format(
+				"delay change %d, native %d",
+				java.delay,
+				speex.delay);
+		}
+		final int javaTimestamp = java.backend.getTimestamp();
+		final int speexTimestamp = speex.backend.getTimestamp();
+		if (javaTimestamp != speexTimestamp) {
+			return String.format(
+				"timestamp %d, native %d",
+				javaTimestamp,
+				speexTimestamp);
+		}
+		return null;
+	}
+
+	private static Native.JitterBufferPacket newPacket() {
+		final Native.JitterBufferPacket packet = new Native.JitterBufferPacket();
+		packet.data = new byte[MAX_FRAME_SIZE];
+		return packet;
+	}
+
+	/**
+	 * @return Time to replay the trace through the backend, in ns.
+	 */
+	private static long time(
+		final Backend backend,
+		final JitterTrace trace,
+		final int margin,
+		final int changedMargin) {
+		final Replay replay = new Replay(backend);
+		backend.setMargin(margin);
+
+		try {
+			final long start = System.nanoTime();
+			int next = 0;
+			for (int tick = 0; tick < trace.ticks; tick++) {
+				if (tick == trace.ticks / 2) {
+					backend.setMargin(changedMargin);
+				}
+
+				next = replay.step(trace, tick, next);
+			}
+			return System.nanoTime() - start;
+		} finally {
+			backend.close();
+		}
+	}
+}
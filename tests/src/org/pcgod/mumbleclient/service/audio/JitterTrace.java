@@ -0,0 +1,180 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Packets arriving at a jitter buffer, ordered by the output frame (tick) in
+ * which they arrive.
+ *
+ * A recorded trace can be replayed through the constructor. generate()
+ * builds one from a seed with network jitter, delay spikes, lost packets,
+ * loss bursts, duplicates, silent gaps and several frames per packet.
+ *
+ * The timestamps start at 0 and stay far from the int wrap-around, which the
+ * Java buffer doesn't handle like Speex does.
+ */
+final class JitterTrace {
+	/**
+	 * Generates a trace of the given number of sent frames.
+	 */
+	static JitterTrace generate(final long seed, final int frames) {
+		final Random random = new Random(seed);
+		final int framesPerPacket = 1 + random.nextInt(4);
+		final int baseDelay = random.nextInt(3);
+		final int maxJitter = random.nextInt(6);
+		final int lossPercent = random.nextInt(10);
+		final int burstPercent = random.nextInt(3);
+		final int spikePercent = random.nextInt(2);
+		final int duplicatePercent = random.nextInt(2);
+		final int gapPercent = random.nextInt(2);
+
+		final int[] arrivals = new int[frames * 2];
+		final int[] timestamps = new int[frames * 2];
+		final short[] sequences = new short[frames * 2];
+		final int[] lengths = new int[frames * 2];
+		int count = 0;
+
+		int lostPackets = 0;
+		int spike = 0;
+		int gap = 0;
+		for (int first = 0; first < frames; first += framesPerPacket) {
+			final int sent = first + framesPerPacket - 1;
+
+			// Packets aren't sent during silence, the sequence goes on.
+			if (gap > 0) {
+				gap--;
+				continue;
+			}
+			if (random.nextInt(100) < gapPercent) {
+				gap = 10 + random.nextInt(100);
+			}
+
+			if (lostPackets > 0) {
+				lostPackets--;
+				continue;
+			}
+			if (random.nextInt(100) < burstPercent) {
+				lostPackets = 1 + random.nextInt(10);
+				continue;
+			}
+			if (random.nextInt(100) < lossPercent) {
+				continue;
+			}
+
+			if (spike > 0) {
+				spike--;
+			} else if (random.nextInt(100) < spikePercent) {
+				spike = 5 + random.nextInt(20);
+			}
+
+			final int arrival = sent + baseDelay + random.nextInt(maxJitter + 1) +
+					  (spike > 0 ? 10 + random.nextInt(20) : 0);
+			final int copies = random.nextInt(100) < duplicatePercent ? 2 : 1;
+			for (int copy = 0; copy < copies; copy++) {
+				for (int frame = first; frame < first + framesPerPacket &&
+										frame < frames; frame++) {
+					arrivals[count] = arrival + copy * random.nextInt(5);
+					timestamps[count] = frame * MumbleProtocol.FRAME_SIZE;
+					sequences[count] = (short) frame;
+					lengths[count] = 20 + random.nextInt(80);
+					count++;
+				}
+			}
+		}
+
+		// Sort by arrival, keeping the send order within a tick.
+		final Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				if (arrivals[a] != arrivals[b]) {
+					return arrivals[a] < arrivals[b] ? -1 : 1;
+				}
+				return a - b;
+			}
+		});
+
+		final int[] spans = new int[count];
+		final int[] sortedArrivals = new int[count];
+		final int[] sortedTimestamps = new int[count];
+		final short[] sortedSequences = new short[count];
+		final int[] sortedLengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			spans[i] = MumbleProtocol.FRAME_SIZE;
+			sortedArrivals[i] = arrivals[order[i]];
+			sortedTimestamps[i] = timestamps[order[i]];
+			sortedSequences[i] = sequences[order[i]];
+			sortedLengths[i] = lengths[order[i]];
+		}
+
+		// Keep ticking after the last packet so the buffer runs dry.
+		final int ticks = (count > 0 ? sortedArrivals[count - 1] : 0) + 50;
+		return new JitterTrace(
+			ticks,
+			sortedArrivals,
+			sortedTimestamps,
+			spans,
+			sortedSequences,
+			sortedLengths);
+	}
+
+	/** Output frames to replay */
+	final int ticks;
+	final int[] arrivals;
+	final int[] timestamps;
+	final int[] spans;
+	final short[] sequences;
+	final int[] lengths;
+
+	/**
+	 * @param arrivals
+	 *            Tick in which each packet arrives, in ascending order.
+	 */
+	JitterTrace(
+		final int ticks,
+		final int[] arrivals,
+		final int[] timestamps,
+		final int[] spans,
+		final short[] sequences,
+		final int[] lengths) {
+		for (int i = 1; i < arrivals.length; i++) {
+			if (arrivals[i] < arrivals[i - 1]) {
+				throw new IllegalArgumentException("arrivals must be sorted");
+			}
+		}
+
+		this.ticks = ticks;
+		this.arrivals = arrivals;
+		this.timestamps = timestamps;
+		this.spans = spans;
+		this.sequences = sequences;
+		this.lengths = lengths;
+	}
+
+	/**
+	 * Copies a packet of the trace into the struct. The data is derived from
+	 * the sequence so it can be checked on the way out.
+	 */
+	void fill(final int i, final Native.JitterBufferPacket packet) {
+		packet.timestamp = timestamps[i];
+		packet.span = spans[i];
+		packet.sequence = sequences[i];
+		packet.user_data = 0;
+		packet.len = lengths[i];
+		for (int j = 0; j < packet.len; j++) {
+			packet.data[j] = (byte) (sequences[i] * 31 + j);
+		}
+	}
+
+	int size() {
+		return arrivals.length;
+	}
+}